@@ -140,6 +140,15 @@ public class Cluster {
         return cluster_tac;
     }
 
+    /**
+     * Sets the mean TAC of the voxels of this cluster.
+     * 
+     * @param tac The new cluster TAC.
+     */
+    public void setClusterTAC(double[] tac) {
+        this.cluster_tac = tac;
+    }
+
     /**
      * @return The number of pixels inside this cluster.
      */
@@ -188,13 +197,41 @@ public class Cluster {
                 cluster_tac = temp;
 
         } else {
+            // Copy the data, as the caller may reuse the array (for instance,
+            // when walking the image with a VoxelCursor).
             if (modify_centroid)
-                centroid = data;
+                centroid = data.clone();
             else
-                cluster_tac = data;
+                cluster_tac = data.clone();
         }
 
-        peak_stats.addValue(StatUtils.max(data));
+        _addVoxel(StatUtils.max(data), x, y, slice);
+
+    }
+
+    /**
+     * Adds a voxel to this cluster without its TAC: neither the centroid
+     * nor the cluster TAC are modified. Techniques that compute the mean 
+     * TAC of the cluster on their own use this method and then call
+     * {@link #setClusterTAC(double[])}.
+     * 
+     * @param peak Maximum value of the TAC of the voxel.
+     * @param x X-coordinate of the voxel.
+     * @param y Y-coordinate of the voxel.
+     * @param slice Slice (1-based) of the voxel.
+     */
+    public void add(double peak, int x, int y, int slice) {
+
+        _addVoxel(peak, x, y, slice);
+
+    }
+
+    /*
+     * Updates the size, peak statistics, coordinates and spatial centroid.
+     */
+    private void _addVoxel(double peak, int x, int y, int slice) {
+
+        peak_stats.addValue(peak);
         size++;
         coordinates.add(new Integer[] {x, y, slice});
         
@@ -1,6 +1,9 @@
 package jclustering;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
@@ -23,6 +26,41 @@ public class ImagePlusHyp implements Iterable<Voxel>{
     private ImageStack is;
     private Calibration cal;
     
+    // Linear offsets of the unmasked voxels, in iteration order
+    private volatile int[] index;
+    
+    // Values read at once when filling a TAC matrix that is not a single
+    // double array
+    private static final int MAX_BLOCK_VALUES = 1 << 26;
+    
+    // Optional in-memory copy of all the unmasked TACs
+    private TACMatrix tacs;
+    
+    // Values derived from the TACs, computed on demand
+    private volatile VoxelFeatures features;
+    
+    // Direct references to the pixel arrays of each stack plane (0-based).
+    // Only the one matching the image type is used, and all of them are
+    // null if the direct access path is not available.
+    private byte[][] pixels8;
+    private short[][] pixels16;
+    private float[][] pixels32;
+    
+    // Distance between the stack planes of two consecutive frames
+    private int frame_stride;
+    
+    // Virtual stack whose planes can be read as 8, 16 or 32-bit arrays
+    private boolean virtual_planes;
+    
+    // Calibrated value for every possible raw value of 8 and 16-bit images
+    private double[] ctable;
+    
+    // Calibration for 32-bit images: none, linear (a + b * raw) or any
+    // other function (Calibration.getCValue())
+    private static final int CAL_NONE = 0, CAL_LINEAR = 1, CAL_OTHER = 2;
+    private int cal_type;
+    private double cal_a, cal_b;
+    
     /**
      * The calibrated 0.0 value (which may not be equal to 0.0)
      */
@@ -41,8 +79,105 @@ public class ImagePlusHyp implements Iterable<Voxel>{
         this.cal = ip.getCalibration();
         CALZERO = cal.getCValue(0.0);
         
+        _initPixelArrays();
+        _initCalibration();
+        
+    }
+    
+    /*
+     * Grabs the backing arrays of every plane in the stack, so that TACs
+     * can be read without going through ImageStack.getVoxel(). Virtual 
+     * stacks would load every plane from disk here, so their planes are
+     * loaded only when needed (see _getPlane). RGB images need the generic
+     * path, so they are left out.
+     */
+    private void _initPixelArrays() {
+        
+        frame_stride = dim[2] * dim[3];
+        
+        if (is.isVirtual()) {
+            int depth = imp.getBitDepth();
+            virtual_planes = depth == 8 || depth == 16 || depth == 32;
+            return;
+        }
+        
+        int size = is.getSize();
+        
+        switch (imp.getBitDepth()) {
+        case 8:
+            pixels8 = new byte[size][];
+            for (int i = 0; i < size; i++) 
+                pixels8[i] = (byte[]) is.getPixels(i + 1);
+            break;
+        case 16:
+            pixels16 = new short[size][];
+            for (int i = 0; i < size; i++) 
+                pixels16[i] = (short[]) is.getPixels(i + 1);
+            break;
+        case 32:
+            pixels32 = new float[size][];
+            for (int i = 0; i < size; i++) 
+                pixels32[i] = (float[]) is.getPixels(i + 1);
+            break;
+        default:
+            break;
+        }
+        
     }
 
+    /*
+     * Precomputes the calibration. 8 and 16-bit images get a lookup table
+     * with the calibrated value for every raw value, so that the
+     * calibration function is evaluated at most 65536 times instead of once
+     * per voxel and frame. 32-bit images use the raw value or a linear
+     * transform directly when the calibration allows it.
+     */
+    private void _initCalibration() {
+        
+        int depth = imp.getBitDepth();
+        if (depth == 8 || depth == 16) {
+            int size = depth == 8 ? 256 : 65536;
+            ctable = new double[size];
+            for (int i = 0; i < size; i++)
+                ctable[i] = cal.getCValue((double) i);
+        } else {
+            ctable = null;
+        }
+        
+        cal_type = CAL_OTHER;
+        double[] coeff = cal.getCoefficients();
+        if (cal.getFunction() == Calibration.NONE) {
+            cal_type = CAL_NONE;
+        } else if (cal.getFunction() == Calibration.STRAIGHT_LINE && 
+                   coeff != null && coeff.length == 2) {
+            cal_a = coeff[0];
+            cal_b = coeff[1];
+            // Newer ImageJ versions can clip negative values to 0. Check
+            // that this calibration gives a negative value where expected
+            // before using the linear transform.
+            double raw = cal_b != 0.0 ? (-cal_a - 1.0) / cal_b : 0.0;
+            if (Double.compare(cal.getCValue(raw), cal_a + cal_b * raw) == 0)
+                cal_type = CAL_LINEAR;
+        }
+        
+    }
+    
+    /*
+     * Calibrated value for a raw 32-bit value.
+     */
+    private double _calibrate(float raw) {
+        
+        switch (cal_type) {
+        case CAL_NONE:
+            return raw;
+        case CAL_LINEAR:
+            return cal_a + cal_b * raw;
+        default:
+            return cal.getCValue((double) raw);
+        }
+        
+    }
+    
     /**
      * Gets the time-activity curve (dixel, after "dynamic pixel") for the 
      * given coordinates. Please note that this method returns the calibrated
@@ -78,11 +213,46 @@ public class ImagePlusHyp implements Iterable<Voxel>{
                 || slice < 1) {            
             return null;
         }
+        
+        // Use the TAC matrix if it has been built and contains this voxel
+        if (tacs != null) {
+            int row = tacs.find(x, y, slice);
+            if (row >= 0)
+                return tacs.getTAC(row);
+        }
+        
+        return readTAC(x, y, slice, new double[dim[4]]);
 
-        // Alloc space for the result
-        double[] result = new double[dim[4]];
+    }
+    
+    /*
+     * Reads the calibrated TAC directly from the ImageStack into the given
+     * array, which is returned. Coordinates are not checked.
+     */
+    double[] readTAC(int x, int y, int slice, double[] result) {
+        
+        int frames = dim[4];
+        
+        // Fast paths: read the primitive arrays directly. The planes for
+        // the same voxel are frame_stride planes away from each other.
+        int plane = imp.getStackIndex(dim[2], slice, 1) - 1;
+        int pos = x + y * dim[0];
+        
+        if (pixels16 != null) {
+            for (int t = 0; t < frames; t++, plane += frame_stride)
+                result[t] = ctable[pixels16[plane][pos] & 0xffff];
+            return result;
+        } else if (pixels32 != null) {
+            for (int t = 0; t < frames; t++, plane += frame_stride)
+                result[t] = _calibrate(pixels32[plane][pos]);
+            return result;
+        } else if (pixels8 != null) {
+            for (int t = 0; t < frames; t++, plane += frame_stride)
+                result[t] = ctable[pixels8[plane][pos] & 0xff];
+            return result;
+        }
 
-        // Set the desired slice and iterate through the frames
+        // Generic path. Set the desired slice and iterate through the frames
         for (int frame = 1; frame <= dim[4]; frame++) {
             int stack_number = imp.getStackIndex(dim[2], slice, frame);            
             // Use calibration to return true value
@@ -94,6 +264,534 @@ public class ImagePlusHyp implements Iterable<Voxel>{
 
     }
     
+    /**
+     * Returns the index of unmasked voxels. It contains the linear offset
+     * ({@code x + y * width + (slice - 1) * width * height}) of every voxel
+     * that is not masked, sorted in ascending order, which is the same order
+     * used by the {@link Iterator} and {@link VoxelCursor}. The position of
+     * a voxel in this array is its <em>row</em>.
+     * <p>
+     * The index is computed the first time it is needed, reading the whole
+     * image once, and reused afterwards, so that masked voxels never need to
+     * be read again.
+     * 
+     * @return The index. It must not be modified.
+     */
+    public int[] getMaskIndex() {
+        
+        int[] res = index;
+        return res != null ? res : _buildMaskIndex();
+        
+    }
+    
+    /*
+     * Builds the mask index. Synchronized so that concurrent callers 
+     * only build it once.
+     */
+    private synchronized int[] _buildMaskIndex() {
+        
+        if (index != null) return index;
+        
+        int plane = dim[0] * dim[1];
+        
+        // Start with room for a tenth of the image and grow as needed, as
+        // the number of unmasked voxels is not known yet.
+        int capacity = Math.max(16, plane * dim[3] / 10);
+        int[] offsets = new int[capacity];
+        int n = 0;
+        double[] tac = new double[dim[4]];
+        
+        // Virtual stacks are read plane by plane instead (see 
+        // _findMaskedVoxels), so that every plane is loaded only once
+        double[] first = null;
+        boolean[] masked = null;
+        if (virtual_planes) {
+            first = new double[plane];
+            masked = new boolean[plane];
+        }
+        
+        for (int slice = 1; slice <= dim[3]; slice++) {
+            IJ.showStatus("Finding masked voxels: slice " + slice + "/" 
+                          + dim[3]);
+            if (virtual_planes) {
+                _findMaskedVoxels(slice, first, masked);
+                for (int i = 0; i < plane; i++) {
+                    if (masked[i]) continue;
+                    
+                    if (n == capacity) {
+                        capacity += capacity >> 1;
+                        offsets = Arrays.copyOf(offsets, capacity);
+                    }
+                    offsets[n++] = i + (slice - 1) * plane;
+                }
+                continue;
+            }
+            for (int y = 0; y < dim[1]; y++) {
+                for (int x = 0; x < dim[0]; x++) {
+                    readTAC(x, y, slice, tac);
+                    if (MathUtils.isMasked(tac, CALZERO)) continue;
+                    
+                    if (n == capacity) {
+                        capacity += capacity >> 1;
+                        offsets = Arrays.copyOf(offsets, capacity);
+                    }
+                    offsets[n++] = x + y * dim[0] + (slice - 1) * plane;
+                }
+            }
+        }
+        
+        // Trim to the actual size
+        index = Arrays.copyOf(offsets, n);
+        
+        return index;
+        
+    }
+    
+    /*
+     * Marks the masked voxels of a slice in a virtual stack, reading each
+     * frame plane only once. Uses the same criterion as 
+     * MathUtils.isMasked(): a TAC is masked if its first value is 0.0 or
+     * CALZERO and all the others are equal to it. first holds the first
+     * value of each voxel.
+     */
+    private void _findMaskedVoxels(int slice, double[] first, 
+                                   boolean[] masked) {
+        
+        int size = first.length;
+        int plane = imp.getStackIndex(dim[2], slice, 1) - 1;
+        
+        for (int t = 0; t < dim[4]; t++, plane += frame_stride) {
+            Object p = _getPlane(plane);
+            for (int i = 0; i < size; i++) {
+                if (t > 0 && !masked[i]) continue;
+                double value = _getValue(p, i);
+                if (t == 0) {
+                    first[i] = value;
+                    masked[i] = Double.compare(value, CALZERO) == 0 ||
+                                Double.compare(value, 0.0) == 0;
+                } else {
+                    masked[i] = Double.compare(value, first[i]) == 0;
+                }
+            }
+        }
+        
+    }
+    
+    /*
+     * Returns the pixel array of a stack plane (0-based), loading it from
+     * disk if this is a virtual stack.
+     */
+    private Object _getPlane(int plane) {
+        
+        if (pixels16 != null) return pixels16[plane];
+        if (pixels32 != null) return pixels32[plane];
+        if (pixels8 != null) return pixels8[plane];
+        return is.getPixels(plane + 1);
+        
+    }
+    
+    /*
+     * Calibrated value at the given position of a plane returned by
+     * _getPlane().
+     */
+    private double _getValue(Object p, int pos) {
+        
+        if (p instanceof short[])
+            return ctable[((short[]) p)[pos] & 0xffff];
+        if (p instanceof float[])
+            return _calibrate(((float[]) p)[pos]);
+        return ctable[((byte[]) p)[pos] & 0xff];
+        
+    }
+    
+    /**
+     * @return {@code true} if the image is a virtual stack, whose planes
+     *         are loaded from disk every time they are accessed. In that
+     *         case, {@link VoxelCursor} reads the TACs one slice at a time
+     *         using {@link #getTACs(int, int, double[])}, so that every
+     *         plane is loaded only once per pass.
+     */
+    public boolean isVirtual() {
+        return is.isVirtual();
+    }
+    
+    /**
+     * @return The number of unmasked voxels in the image.
+     */
+    public int getVoxelCount() {
+        return getMaskIndex().length;
+    }
+    
+    /**
+     * @param row The row (position in the mask index) of an unmasked voxel.
+     * @return Its x-coordinate.
+     */
+    public int getX(int row) {
+        return getMaskIndex()[row] % dim[0];
+    }
+    
+    /**
+     * @param row The row (position in the mask index) of an unmasked voxel.
+     * @return Its y-coordinate.
+     */
+    public int getY(int row) {
+        return (getMaskIndex()[row] / dim[0]) % dim[1];
+    }
+    
+    /**
+     * @param row The row (position in the mask index) of an unmasked voxel.
+     * @return Its slice (1-based).
+     */
+    public int getSlice(int row) {
+        return getMaskIndex()[row] / (dim[0] * dim[1]) + 1;
+    }
+    
+    /**
+     * Finds the row (position in the mask index) for the given coordinates.
+     * 
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param slice Slice (1-based).
+     * @return The row, or {@code -1} if the voxel is masked or the
+     *         coordinates are not valid.
+     */
+    public int getRow(int x, int y, int slice) {
+        
+        if (x >= dim[0] || x < 0 || y >= dim[1] || y < 0 || slice > dim[3]
+                || slice < 1) {            
+            return -1;
+        }
+        
+        int offset = x + y * dim[0] + (slice - 1) * dim[0] * dim[1];
+        int row = Arrays.binarySearch(getMaskIndex(), offset);
+        return row < 0 ? -1 : row;
+        
+    }
+    
+    /**
+     * Returns the first row (position in the mask index) that belongs to
+     * the given slice or to any slice after it. Therefore, the rows for a
+     * given slice are those between {@code getFirstRow(slice)} (inclusive)
+     * and {@code getFirstRow(slice + 1)} (exclusive).
+     * 
+     * @param slice Slice (1-based). Values bigger than the number of slices
+     *            return {@link #getVoxelCount()}.
+     * @return The first row for that slice.
+     */
+    public int getFirstRow(int slice) {
+        
+        int[] idx = getMaskIndex();
+        if (slice > dim[3]) return idx.length;
+        
+        int row = Arrays.binarySearch(idx, 
+                                      Math.max(0, slice - 1) * dim[0] * dim[1]);
+        return row < 0 ? -(row + 1) : row;
+        
+    }
+    
+    /**
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param slice Slice (1-based).
+     * @return {@code true} if the voxel at the given coordinates is masked
+     *         (or the coordinates are not valid).
+     */
+    public boolean isMasked(int x, int y, int slice) {
+        return getRow(x, y, slice) < 0;
+    }
+    
+    /**
+     * Copies the calibrated TAC of the unmasked voxel at the given row
+     * (position in the mask index) into {@code dest}.
+     * 
+     * @param row The row.
+     * @param dest The destination array, as long as the number of frames.
+     * @return The {@code dest} array.
+     */
+    public double[] getTAC(int row, double[] dest) {
+        
+        if (tacs != null) 
+            return tacs.getTAC(row, dest);
+        
+        int offset = getMaskIndex()[row];
+        int plane = dim[0] * dim[1];
+        return readTAC(offset % dim[0], (offset % plane) / dim[0], 
+                       offset / plane + 1, dest);
+        
+    }
+    
+    /**
+     * Copies the calibrated TACs of the unmasked voxels between rows
+     * {@code from} (inclusive) and {@code to} (exclusive) into {@code dest},
+     * one after the other. The TAC for row {@code r} starts at position
+     * {@code (r - from) * frames}.
+     * <p>
+     * This is faster than reading the TACs one by one, as each stack plane
+     * is visited only once per slice.
+     * 
+     * @param from The first row.
+     * @param to The last row (exclusive).
+     * @param dest The destination array, at least 
+     *            {@code (to - from) * frames} long.
+     * @return The {@code dest} array.
+     */
+    public double[] getTACs(int from, int to, double[] dest) {
+        
+        int frames = dim[4];
+        
+        if (tacs != null) 
+            return tacs.getTACs(from, to, dest);
+        
+        // Read slice by slice
+        int row = from;
+        while (row < to) {
+            int slice = getSlice(row);
+            int end = Math.min(to, getFirstRow(slice + 1));
+            _readBlock(slice, row, end, dest, (row - from) * frames);
+            row = end;
+        }
+        
+        return dest;
+        
+    }
+    
+    /*
+     * Reads the TACs for the rows between from and to (exclusive), which
+     * must all belong to the given slice, into dest, starting at position
+     * pos. Goes through the stack plane by plane.
+     */
+    private void _readBlock(int slice, int from, int to, double[] dest, 
+                            int pos) {
+        
+        int[] idx = getMaskIndex();
+        int frames = dim[4];
+        int first = (slice - 1) * dim[0] * dim[1];
+        int plane = imp.getStackIndex(dim[2], slice, 1) - 1;
+        
+        if (pixels16 == null && pixels32 == null && pixels8 == null &&
+            !virtual_planes) {
+            // Generic path, voxel by voxel
+            double[] tac = new double[frames];
+            int width = dim[0];
+            for (int r = from, d = pos; r < to; r++, d += frames) {
+                int offset = idx[r] - first;
+                readTAC(offset % width, offset / width, slice, tac);
+                System.arraycopy(tac, 0, dest, d, frames);
+            }
+            return;
+        }
+        
+        // Visit each plane only once. For virtual stacks, this is what
+        // avoids loading a whole plane from disk for every single value.
+        for (int t = 0; t < frames; t++, plane += frame_stride) {
+            Object o = _getPlane(plane);
+            if (o instanceof short[]) {
+                short[] p = (short[]) o;
+                for (int r = from, d = pos + t; r < to; r++, d += frames)
+                    dest[d] = ctable[p[idx[r] - first] & 0xffff];
+            } else if (o instanceof float[]) {
+                float[] p = (float[]) o;
+                for (int r = from, d = pos + t; r < to; r++, d += frames)
+                    dest[d] = _calibrate(p[idx[r] - first]);
+            } else {
+                byte[] p = (byte[]) o;
+                for (int r = from, d = pos + t; r < to; r++, d += frames)
+                    dest[d] = ctable[p[idx[r] - first] & 0xff];
+            }
+        }
+        
+    }
+    
+    /**
+     * Builds a {@link TACMatrix} that holds a calibrated copy of the TACs of
+     * all the unmasked voxels in the image, in double precision. See
+     * {@link #buildTACMatrix(boolean)}.
+     * 
+     * @return The TAC matrix.
+     */
+    public TACMatrix buildTACMatrix() {
+        return buildTACMatrix(false);
+    }
+    
+    /**
+     * Builds a {@link TACMatrix} that holds a calibrated copy of the TACs of
+     * all the unmasked voxels in the image. The image is read only once,
+     * and from then on {@link #getTAC(int, int, int)} and the
+     * {@link Iterator} provided by this object read from the matrix instead
+     * of going through the {@link ImageStack} for every frame.
+     * <p>
+     * This is an opt-in mode, as it trades memory for speed: the matrix
+     * takes {@code 8 * voxels * frames} bytes, or half of that if it is
+     * stored in single precision. Matrices with more than 2^31 - 1 values
+     * are split in several arrays. If the matrix had already been built, it
+     * is not built again.
+     * 
+     * @param single_precision Store the values as {@code float} instead of
+     *            {@code double}.
+     * @return The TAC matrix.
+     */
+    public TACMatrix buildTACMatrix(boolean single_precision) {
+        
+        if (tacs != null) return tacs;
+        
+        int[] offsets = getMaskIndex();
+        int frames = dim[4];
+        TACMatrix m = TACMatrix.allocate(offsets, offsets.length, frames,
+                                         dim[0], dim[1], single_precision);
+        
+        double[] data = m.getData();
+        if (data != null) {
+            // A single double array: read straight into the matrix
+            for (int slice = 1; slice <= dim[3]; slice++) {
+                IJ.showStatus("Building TAC matrix: slice " + slice + "/" 
+                              + dim[3]);
+                int from = getFirstRow(slice);
+                int to = getFirstRow(slice + 1);
+                _readBlock(slice, from, to, data, from * frames);
+            }
+        } else {
+            _fillTACMatrix(m);
+        }
+        tacs = m;
+        
+        return tacs;
+        
+    }
+    
+    /**
+     * Builds a {@link TACMatrix} like {@link #buildTACMatrix(boolean)}, but
+     * stores it in a memory-mapped temporary file instead of in the Java
+     * heap (see {@link TACMatrix#map(int[], int, int, int, int, boolean)}).
+     * This allows working with studies that do not fit in the heap, while
+     * still reading the image only once. The file is deleted by 
+     * {@link #releaseTACMatrix()} and {@link #clearCache()}.
+     * 
+     * @param single_precision Store the values as {@code float} instead of
+     *            {@code double}.
+     * @return The TAC matrix.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    public TACMatrix buildMappedTACMatrix(boolean single_precision) 
+            throws IOException {
+        
+        if (tacs != null) return tacs;
+        
+        int[] offsets = getMaskIndex();
+        TACMatrix m = TACMatrix.map(offsets, offsets.length, dim[4], dim[0],
+                                    dim[1], single_precision);
+        _fillTACMatrix(m);
+        tacs = m;
+        
+        return tacs;
+        
+    }
+    
+    /*
+     * Reads the image slice by slice into a temporary block and copies it
+     * to the given matrix. Slices with more than MAX_BLOCK_VALUES values
+     * are read in several blocks.
+     */
+    private void _fillTACMatrix(TACMatrix m) {
+        
+        int frames = dim[4];
+        int block_rows = Math.max(1, MAX_BLOCK_VALUES / frames);
+        double[] block = new double[0];
+        for (int slice = 1; slice <= dim[3]; slice++) {
+            IJ.showStatus("Building TAC matrix: slice " + slice + "/" 
+                          + dim[3]);
+            int to = getFirstRow(slice + 1);
+            for (int from = getFirstRow(slice); from < to; 
+                    from += block_rows) {
+                int end = Math.min(to, from + block_rows);
+                int length = (end - from) * frames;
+                if (block.length < length) block = new double[length];
+                _readBlock(slice, from, end, block, 0);
+                m.setTACs(from, end, block);
+            }
+        }
+        
+    }
+    
+    /**
+     * @return The {@link TACMatrix} built by {@link #buildTACMatrix()}, or
+     *         {@code null} if it has not been built.
+     */
+    public TACMatrix getTACMatrix() {
+        return tacs;
+    }
+    
+    /**
+     * Creates an empty matrix for values derived from the TACs, one row per
+     * unmasked voxel, stored in the same way as the {@link TACMatrix} (see
+     * {@link TACMatrix#createSibling()}). If it has not been built, or its
+     * temporary file cannot be created, the matrix is kept in double 
+     * precision in the Java heap. Its creator fills it with 
+     * {@link TACMatrix#setTACs(int, int, double[])} and closes it when it
+     * is no longer needed.
+     * 
+     * @return The new matrix, filled with zeros.
+     */
+    public TACMatrix newDerivedMatrix() {
+
+        if (tacs != null) {
+            try {
+                return tacs.createSibling();
+            } catch (IOException e) {
+                IJ.log("Couldn't create a temporary file, using the heap: " 
+                       + e.getLocalizedMessage());
+            }
+        }
+
+        return TACMatrix.allocate(getMaskIndex(), getVoxelCount(), dim[4],
+                                  dim[0], dim[1], false);
+
+    }
+    
+    /**
+     * Frees the memory used by the {@link TACMatrix}, if it was built. TACs
+     * are read from the {@link ImageStack} again after calling this method.
+     */
+    public void releaseTACMatrix() {
+        if (tacs != null) tacs.close();
+        tacs = null;
+    }
+    
+    /**
+     * Returns the {@link VoxelFeatures} cache for this image, which holds
+     * values derived from the TAC of every unmasked voxel (norms, means,
+     * normalized TACs...). The cache object is created the first time it is
+     * needed, and each feature is computed only when it is first requested.
+     * 
+     * @return The feature cache.
+     */
+    public VoxelFeatures getFeatures() {
+        
+        VoxelFeatures res = features;
+        if (res == null) {
+            synchronized (this) {
+                if (features == null) features = new VoxelFeatures(this);
+                res = features;
+            }
+        }
+        
+        return res;
+        
+    }
+    
+    /**
+     * Frees the {@link TACMatrix}, the mask index and the
+     * {@link VoxelFeatures}, and reads the calibration function again. They
+     * will be computed again if needed, so this method should be called if
+     * the image contents or its calibration might have changed.
+     */
+    public synchronized void clearCache() {
+        releaseTACMatrix();
+        index = null;
+        if (features != null) features.close();
+        features = null;
+        _initCalibration();
+    }
+    
     /**
      * @return The dimensions of the {@link ImagePlus} used to create 
      * this object.
@@ -117,6 +815,78 @@ public class ImagePlusHyp implements Iterable<Voxel>{
         return imp;
     }
 
+    /**
+     * Returns a {@link VoxelCursor} that walks through the same voxels as
+     * the {@link Iterator} provided by this object, but reuses a single
+     * TAC buffer instead of creating a new {@link Voxel} for each one. 
+     * Example:
+     * 
+     * <pre>
+     * VoxelCursor v = ip.cursor();
+     * while (v.next()) {
+     *  ... // v.x, v.y, v.slice and v.tac hold the current voxel
+     * }
+     * </pre>
+     * 
+     * @return A new cursor, positioned before the first voxel.
+     */
+    public VoxelCursor cursor() {
+        return cursor(new double[dim[4]]);
+    }
+    
+    /**
+     * Same as {@link #cursor()}, but the TACs are written into the given
+     * array.
+     * 
+     * @param tac Array that will hold the current TAC. Must be at least as
+     *            long as the number of frames. Only the first values (one
+     *            per frame) are written.
+     * @return A new cursor, positioned before the first voxel.
+     */
+    public VoxelCursor cursor(double[] tac) {
+        return new VoxelCursor(this, tac, 0, getVoxelCount());
+    }
+    
+    /**
+     * Returns a {@link VoxelCursor} that only visits the voxels whose row
+     * (position in the mask index) is between {@code from} (inclusive) and
+     * {@code to} (exclusive). Use {@link #getFirstRow(int)} to build cursors
+     * for a range of slices.
+     * 
+     * @param from First row.
+     * @param to Last row (exclusive).
+     * @return A new cursor, positioned before the first voxel of the range.
+     */
+    public VoxelCursor cursor(int from, int to) {
+        return new VoxelCursor(this, new double[dim[4]], from, to);
+    }
+    
+    /**
+     * Splits the unmasked voxels into {@code parts} contiguous ranges of
+     * (almost) the same size, and returns a cursor for each of them. Taken 
+     * together, the cursors visit exactly the same voxels as 
+     * {@link #cursor()}, and each one has its own TAC buffer, so that they
+     * can be used from different threads.
+     * 
+     * @param parts The number of parts. If there are less voxels than parts,
+     *            fewer cursors are returned.
+     * @return The cursors, in row order.
+     */
+    public VoxelCursor[] split(int parts) {
+        
+        int n = getVoxelCount();
+        parts = Math.max(1, Math.min(parts, n));
+        
+        VoxelCursor[] res = new VoxelCursor[parts];
+        for (int i = 0; i < parts; i++) {
+            res[i] = cursor((int) ((long) n * i / parts), 
+                            (int) ((long) n * (i + 1) / parts));
+        }
+        
+        return res;
+        
+    }
+
     @Override
     public Iterator<Voxel> iterator() {
         return new ImagePlusHypIterator(this);
@@ -2,28 +2,24 @@ package jclustering;
 
 import java.util.Iterator;
 
-import static jclustering.MathUtils.isMasked;
-
 /**
  * Provides an {@link Iterator} for an {@link ImagePlusHyp} object. This is
  * the recommended way to iterate through all the voxels in a given image, as
  * this does not require the user to know its dimensions and will not return
  * voxels that have been masked previously, therefore diminishing the size of
  * the clustering problem to solve. 
+ * <p>
+ * Each returned {@link Voxel} is a new object that can be safely stored. 
+ * If that is not needed, a {@link VoxelCursor} avoids creating one object 
+ * per voxel.
  * 
  * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
  *
  */
 public class ImagePlusHypIterator implements Iterator<Voxel> {
     
-    // Data
-    private ImagePlusHyp ip;
-    
-    // Current pointers
-    private int x, y, slice;
-    
-    // Limits
-    private int x_max, y_max, slice_max;
+    // The actual walk through the image is done by a cursor
+    private VoxelCursor c;
     
     // Voxel reference
     private Voxel v;
@@ -34,39 +30,22 @@ public class ImagePlusHypIterator implements Iterator<Voxel> {
      */
     public ImagePlusHypIterator(ImagePlusHyp ip) {
         
-        this.ip = ip;
-        
-        // Set limits
-        int [] dim = ip.getDimensions();
-        x_max = dim[0];
-        y_max = dim[1];
-        slice_max = dim[3];
-        
-        // Init pointers
-        x = 0;
-        y = 0;
-        slice = 1;
+        c = ip.cursor();
 
     }
     
     @Override
     public boolean hasNext() {
         
-        boolean found = false;
-        
-        while (_withinLimits() && !found) {
-            v = new Voxel(x, y, slice, ip.getTAC(x, y, slice));
-            _updatePointers();
-            found = !isMasked(v, ip.CALZERO);
+        // Only unmasked voxels get a Voxel object
+        if (c.next()) {
+            v = c.toVoxel();
+            return true;
         }
 
-        return found;
+        return false;
         
     }
-    
-    private boolean _withinLimits() {
-        return (x < x_max) && (y < y_max) && (slice <= slice_max);
-    }
 
     @Override
     public Voxel next() {        
@@ -79,25 +58,4 @@ public class ImagePlusHypIterator implements Iterator<Voxel> {
         throw new UnsupportedOperationException();
 
     }
-    
-    /*
-     * Update the pointers to address the next Voxel
-     */
-    private void _updatePointers() {
-        
-        // First, update x
-        x++;
-        
-        // Am I out of bounds? Go to next row and start column
-        if (x == x_max) {
-            x = 0;
-            y++;
-            
-            // Out of bounds again? Start row and jump to next slice
-            if (y == y_max) {
-                y = 0;
-                slice++;
-            }
-        }
-    }
 }
@@ -13,6 +13,7 @@ import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.io.IOException;
 import java.util.ArrayList;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
@@ -66,6 +67,7 @@ public class JClustering_ implements PlugIn, ActionListener,
     private String file_saving_format = null;
     private String file_saving_path = null;
     private String file_reading_path = null;
+    private String cache_tacs = null;
 
     @Override
     public void run(String arg0) {
@@ -154,6 +156,25 @@ public class JClustering_ implements PlugIn, ActionListener,
                 "jb_tvread", this);
         main_panel.add(jb_tvread);       
         
+        // TAC caching
+        String cache_help = "<html>Read all the TACs only once and keep " +
+                "them in memory while the technique runs.<br>" +
+                "Much faster for iterative techniques, but needs " +
+                "8 bytes per voxel and frame<br>" +
+                "(4 bytes in single precision).<br>" +
+                "The memory-mapped file options keep the TACs in a " +
+                "temporary file instead,<br>" +
+                "for images that do not fit in memory. Values derived " +
+                "from the TACs<br>" +
+                "(normalized TACs, ranks...) use the same storage.</html>";
+        main_panel.add(createJLabel("Cache TACs in memory*:", cache_help));
+        String [] cache_choices = new String[] {"No", "Double precision",
+                "Single precision", "Memory-mapped file (double)", 
+                "Memory-mapped file (single)"};
+        JComboBox c_cache = createChoices("cache_tacs", cache_choices, this);
+        cache_tacs = (String)c_cache.getItemAt(0);
+        main_panel.add(c_cache);
+        
         // Add "About" information
         String about1 = "jClustering " + VERSION;
         String about2 = "<html>Download the source code at " +
@@ -223,8 +244,30 @@ public class JClustering_ implements PlugIn, ActionListener,
         String iname = iph.getImagePlus().getTitle();
     
         IJ.log("----- Process started: " + tname + "-----");
-        // Actual clustering operations
-        technique.compute();
+        
+        // Read all the TACs at once if requested
+        if (cache_tacs.equals("Double precision")) {
+            iph.buildTACMatrix(false);
+        } else if (cache_tacs.equals("Single precision")) {
+            iph.buildTACMatrix(true);
+        } else if (cache_tacs.startsWith("Memory-mapped file")) {
+            try {
+                iph.buildMappedTACMatrix(cache_tacs.endsWith("(single)"));
+            } catch (IOException e) {
+                // Not fatal: TACs are read from the image instead
+                IJ.log("Couldn't create the TAC file: " + 
+                       e.getLocalizedMessage());
+            }
+        }
+        
+        // Actual clustering operations. The image may change between runs,
+        // so the cached TACs and the mask index are never kept, even if
+        // the technique fails.
+        try {
+            technique.compute();
+        } finally {
+            iph.clearCache();
+        }
         ArrayList<Cluster> clusters = technique.getClusters();
         
         // Exit if no clusters were formed
@@ -352,6 +395,9 @@ public class JClustering_ implements PlugIn, ActionListener,
         } else if (source.equals("file_saving")) {
             // File saving JComboBox object
             file_saving_format = (String)((JComboBox)c).getSelectedItem();
+        } else if (source.equals("cache_tacs")) {
+            // TAC caching JComboBox object
+            cache_tacs = (String)((JComboBox)c).getSelectedItem();
         }
 
     }
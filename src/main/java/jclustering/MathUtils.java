@@ -38,15 +38,30 @@ public class MathUtils {
      */
     public static double [] smooth(double [] data) {
         
+        return smooth(data, new double[data.length]);
+        
+    }
+    
+    /**
+     * Smooths the given TAC using a 5-point filtering, without allocating
+     * any memory.
+     * @param data The raw TAC.
+     * @param dest Destination array, as long as {@code data}. May be 
+     * {@code data} itself.
+     * @return The {@code dest} array, with the smoothed TAC.
+     */
+    public static double [] smooth(double [] data, double [] dest) {
+        
         int t = data.length;
-        double [] res = data.clone();
+        if (dest != data) System.arraycopy(data, 0, dest, 0, t);
         double kernel[] = {0.13, 0.185, 0.37, 0.185, 0.13};        
         for (int i = 2; i < t-2; i++) {
-            res[i] = res[i-2]*kernel[0] + res[i-1]*kernel[1] + res[i]*kernel[2]
-                    + res[i+1]*kernel[3] + res[i+2]*kernel[4];
+            dest[i] = dest[i-2]*kernel[0] + dest[i-1]*kernel[1] 
+                    + dest[i]*kernel[2] + dest[i+1]*kernel[3] 
+                    + dest[i+2]*kernel[4];
         }
         
-        return res;        
+        return dest;        
         
     }
     
@@ -58,16 +73,203 @@ public class MathUtils {
      */
     public static double rmsd(double [] x1, double [] x2) {
         
-        double res = 0.0;
-        
-        for (int i = 0; i < x1.length; i++)
-            res += FastMath.pow(x1[i] - x2[i], 2);
+        double res = squaredDistance(x1, x2, x1.length);
         
         res = FastMath.sqrt(res / x1.length);
         
         return res;
     }
     
+    /**
+     * Computes the dot product of the first {@code n} elements of two 
+     * arrays.
+     * <p>
+     * This and the other kernels below are the inner loops of most 
+     * metrics. They are unrolled by four with independent accumulators, so
+     * that consecutive additions do not have to wait for each other and
+     * the JIT compiler can map them to vector instructions. The result may
+     * differ from a plain loop in the last bits, as the additions are done 
+     * in a different order.
+     * 
+     * @param a First array.
+     * @param b Second array.
+     * @param n Number of elements to use.
+     * @return The dot product.
+     */
+    public static double dot(double [] a, double [] b, int n) {
+        return dot(a, 0, b, n);
+    }
+    
+    /**
+     * Computes the dot product of {@code n} elements of array {@code a},
+     * starting at position {@code offset}, and the first {@code n} elements
+     * of array {@code b}. Useful for packed data, such as 
+     * {@link TACMatrix#getData()}. See {@link #dot(double[], double[], int)}.
+     * 
+     * @param a First array.
+     * @param offset Position of the first element of {@code a}.
+     * @param b Second array.
+     * @param n Number of elements to use.
+     * @return The dot product.
+     */
+    public static double dot(double [] a, int offset, double [] b, int n) {
+        
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        
+        for (; i + 3 < n; i += 4) {
+            s0 += a[offset + i] * b[i];
+            s1 += a[offset + i + 1] * b[i + 1];
+            s2 += a[offset + i + 2] * b[i + 2];
+            s3 += a[offset + i + 3] * b[i + 3];
+        }
+        for (; i < n; i++)
+            s0 += a[offset + i] * b[i];
+        
+        return (s0 + s1) + (s2 + s3);
+    }
+    
+    /**
+     * Computes the squared Euclidean distance between {@code n} elements of
+     * array {@code a}, starting at position {@code offset}, and the first
+     * {@code n} elements of array {@code b}. See 
+     * {@link #dot(double[], int, double[], int)}.
+     * 
+     * @param a First array.
+     * @param offset Position of the first element of {@code a}.
+     * @param b Second array.
+     * @param n Number of elements to use.
+     * @return The squared Euclidean distance.
+     */
+    public static double squaredDistance(double [] a, int offset, 
+                                         double [] b, int n) {
+        
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        
+        for (; i + 3 < n; i += 4) {
+            double d0 = a[offset + i] - b[i];
+            double d1 = a[offset + i + 1] - b[i + 1];
+            double d2 = a[offset + i + 2] - b[i + 2];
+            double d3 = a[offset + i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            double d = a[offset + i] - b[i];
+            s0 += d * d;
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Same as {@link #squaredDistance(double[], int, double[], int)}, but
+     * stops as soon as the partial sum is bigger than {@code bound}, which
+     * is checked every four elements. Nearest-centroid searches can give
+     * up on most centroids after a few frames this way. (A separate loop,
+     * so that the unbounded kernel does not pay for the checks.)
+     *
+     * @param a First array.
+     * @param offset Position of the first element of {@code a}.
+     * @param b Second array.
+     * @param n Number of elements to use.
+     * @param bound The bound.
+     * @return The squared Euclidean distance (exactly the same value as
+     *         {@link #squaredDistance(double[], int, double[], int)}) if it
+     *         is not bigger than {@code bound}, or a partial sum bigger
+     *         than {@code bound} otherwise.
+     */
+    public static double squaredDistance(double [] a, int offset,
+                                         double [] b, int n, double bound) {
+
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+
+        for (; i + 3 < n; i += 4) {
+            double d0 = a[offset + i] - b[i];
+            double d1 = a[offset + i + 1] - b[i + 1];
+            double d2 = a[offset + i + 2] - b[i + 2];
+            double d3 = a[offset + i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+            double partial = (s0 + s1) + (s2 + s3);
+            if (partial > bound) return partial;
+        }
+        for (; i < n; i++) {
+            double d = a[offset + i] - b[i];
+            s0 += d * d;
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Computes the sum of the squared differences between the first 
+     * {@code n} elements of two arrays (the squared Euclidean distance).
+     * See {@link #dot(double[], double[], int)}.
+     * 
+     * @param a First array.
+     * @param b Second array.
+     * @param n Number of elements to use.
+     * @return The squared Euclidean distance.
+     */
+    public static double squaredDistance(double [] a, double [] b, int n) {
+        return squaredDistance(a, 0, b, n);
+    }
+
+    /**
+     * Computes the cosine of the angle between the first {@code n}
+     * elements of two arrays, in a single pass that accumulates their dot
+     * product and both squared norms at the same time. Each sum is added
+     * in the same order as in {@link #dot(double[], double[], int)}, so
+     * the result is exactly the same as computing them separately.
+     * 
+     * @param a First array.
+     * @param b Second array.
+     * @param n Number of elements to use.
+     * @return The cosine: {@code a·b / (|a| |b|)}.
+     */
+    public static double cosine(double [] a, double [] b, int n) {
+
+        double p0 = 0.0, p1 = 0.0, p2 = 0.0, p3 = 0.0;
+        double a0 = 0.0, a1 = 0.0, a2 = 0.0, a3 = 0.0;
+        double b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0;
+        int i = 0;
+
+        for (; i + 3 < n; i += 4) {
+            double x0 = a[i], x1 = a[i + 1], x2 = a[i + 2], x3 = a[i + 3];
+            double y0 = b[i], y1 = b[i + 1], y2 = b[i + 2], y3 = b[i + 3];
+            p0 += x0 * y0;
+            p1 += x1 * y1;
+            p2 += x2 * y2;
+            p3 += x3 * y3;
+            a0 += x0 * x0;
+            a1 += x1 * x1;
+            a2 += x2 * x2;
+            a3 += x3 * x3;
+            b0 += y0 * y0;
+            b1 += y1 * y1;
+            b2 += y2 * y2;
+            b3 += y3 * y3;
+        }
+        for (; i < n; i++) {
+            p0 += a[i] * b[i];
+            a0 += a[i] * a[i];
+            b0 += b[i] * b[i];
+        }
+
+        double dot = (p0 + p1) + (p2 + p3);
+        double na = FastMath.sqrt((a0 + a1) + (a2 + a3));
+        double nb = FastMath.sqrt((b0 + b1) + (b2 + b3));
+
+        return dot / (na * nb);
+    }
+    
     /**
      * Computes the normalized RMSD for the given TACs
      * @param x1 TAC 1
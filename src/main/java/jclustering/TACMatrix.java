@@ -0,0 +1,548 @@
+package jclustering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Packed, voxel-major storage for the calibrated time-activity curves of all
+ * the unmasked voxels of an {@link ImagePlusHyp}. Each row of the matrix
+ * holds one TAC, and rows are stored contiguously, following the same order
+ * used by {@link ImagePlusHypIterator} (first x, then y, then slices). As an
+ * array cannot hold more than 2^31 - 1 values, big matrices are split in
+ * several chunks of consecutive rows.
+ * <p>
+ * Values can be stored either in double or in single precision. Single
+ * precision halves the memory needed, and does not lose any information for
+ * uncalibrated images, as ImageJ stores pixels with 32-bit precision at
+ * most. In both cases, TACs are always returned as {@code double} arrays,
+ * so all computations are still performed in double precision.
+ * <p>
+ * The matrix can also be kept outside the Java heap, in a memory-mapped
+ * temporary file (see {@link #map(int[], int, int, int, int, boolean)}).
+ * The operating system then pages the TACs in and out as needed, so studies
+ * larger than the heap (or the physical memory) can be processed. Rows are
+ * read straight from the mapped buffers, and only the requested TACs are
+ * copied to the heap.
+ * <p>
+ * Objects of this class are built by {@link ImagePlusHyp#buildTACMatrix()}
+ * and should not be modified once created. Matrices for values derived from
+ * the TACs can be created with the same storage with 
+ * {@link #createSibling()}.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class TACMatrix {
+
+    // Biggest array length that all virtual machines accept
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    // Matrix data, split in chunks of chunk_rows rows, as neither an array
+    // nor a mapped buffer can hold more than 2^31 - 1 values (or bytes).
+    // Only one of them is not null, unless the matrix has been closed.
+    // The storage kind does not change when the matrix is closed.
+    private double[][] dheap;
+    private float[][] fheap;
+    private DoubleBuffer[] dchunks;
+    private FloatBuffer[] fchunks;
+    private final int chunk_rows;
+    private final boolean single, mapped;
+    private boolean closed = false;
+    
+    // Backing file for memory-mapped matrices
+    private File file;
+
+    // Linear offset (x + y * width + (slice - 1) * width * height) of each row
+    private final int[] offsets;
+
+    // Sizes
+    private final int rows, frames, width, height;
+
+    /**
+     * Creates a new double precision TAC matrix. The data is not copied.
+     *
+     * @param data Packed TAC data, {@code rows * frames} values long.
+     * @param offsets Linear offset of the voxel stored in each row. Must be
+     *            sorted in ascending order.
+     * @param rows Number of rows (TACs).
+     * @param frames Number of frames of each TAC.
+     * @param width Width of the original image.
+     * @param height Height of the original image.
+     */
+    public TACMatrix(double[] data, int[] offsets, int rows, int frames,
+            int width, int height) {
+
+        this(offsets, rows, frames, width, height, Math.max(1, rows), false,
+             false);
+        dheap = new double[][] {data};
+
+    }
+
+    /**
+     * Creates a new single precision TAC matrix. The data is not copied.
+     *
+     * @param data Packed TAC data, {@code rows * frames} values long.
+     * @param offsets Linear offset of the voxel stored in each row. Must be
+     *            sorted in ascending order.
+     * @param rows Number of rows (TACs).
+     * @param frames Number of frames of each TAC.
+     * @param width Width of the original image.
+     * @param height Height of the original image.
+     */
+    public TACMatrix(float[] data, int[] offsets, int rows, int frames,
+            int width, int height) {
+
+        this(offsets, rows, frames, width, height, Math.max(1, rows), true,
+             false);
+        fheap = new float[][] {data};
+
+    }
+
+    private TACMatrix(int[] offsets, int rows, int frames, int width, 
+            int height, int chunk_rows, boolean single, boolean mapped) {
+
+        this.offsets = offsets;
+        this.rows = rows;
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.chunk_rows = chunk_rows;
+        this.single = single;
+        this.mapped = mapped;
+
+    }
+
+    /*
+     * Fails if the matrix has been closed, instead of failing later with
+     * an obscure error.
+     */
+    private void _checkOpen() {
+        if (closed) 
+            throw new IllegalStateException("The TAC matrix has been " +
+                                            "closed.");
+    }
+
+    /*
+     * Number of chunks needed for rows rows.
+     */
+    private static int _chunks(int rows, int chunk_rows) {
+        return rows == 0 ? 0 : (rows - 1) / chunk_rows + 1;
+    }
+
+    /*
+     * Number of rows in the given chunk.
+     */
+    private int _chunkSize(int chunk) {
+        return Math.min(chunk_rows, rows - chunk * chunk_rows);
+    }
+
+    /**
+     * Creates a new, empty TAC matrix in the Java heap. The values are 
+     * split in several arrays if there are more than an array can hold, so
+     * the number of values ({@code rows * frames}) is only limited by the
+     * available memory.
+     *
+     * @param offsets Linear offset of the voxel stored in each row. Must be
+     *            sorted in ascending order.
+     * @param rows Number of rows (TACs).
+     * @param frames Number of frames of each TAC.
+     * @param width Width of the original image.
+     * @param height Height of the original image.
+     * @param single_precision Store the values as {@code float} instead of
+     *            {@code double}.
+     * @return The new matrix, filled with zeros.
+     */
+    public static TACMatrix allocate(int[] offsets, int rows, int frames,
+            int width, int height, boolean single_precision) {
+
+        return allocate(offsets, rows, frames, width, height, 
+                single_precision, 
+                Math.max(1, MAX_ARRAY_LENGTH / Math.max(1, frames)));
+
+    }
+
+    /*
+     * Same as above, with chunks of the given number of rows. 
+     * Package-private, so that the tests can use small chunks.
+     */
+    static TACMatrix allocate(int[] offsets, int rows, int frames,
+            int width, int height, boolean single_precision, 
+            int chunk_rows) {
+
+        TACMatrix m = new TACMatrix(offsets, rows, frames, width, height,
+                chunk_rows, single_precision, false);
+
+        int chunks = _chunks(rows, m.chunk_rows);
+        if (single_precision) m.fheap = new float[chunks][];
+        else m.dheap = new double[chunks][];
+        for (int i = 0; i < chunks; i++) {
+            int length = m._chunkSize(i) * frames;
+            if (single_precision) m.fheap[i] = new float[length];
+            else m.dheap[i] = new double[length];
+        }
+
+        return m;
+
+    }
+
+    /**
+     * Creates a new, empty TAC matrix stored in a memory-mapped temporary
+     * file instead of in the Java heap. The file is deleted when
+     * {@link #close()} is called, or when the virtual machine exits.
+     *
+     * @param offsets Linear offset of the voxel stored in each row. Must be
+     *            sorted in ascending order.
+     * @param rows Number of rows (TACs).
+     * @param frames Number of frames of each TAC.
+     * @param width Width of the original image.
+     * @param height Height of the original image.
+     * @param single_precision Store the values as {@code float} instead of
+     *            {@code double}.
+     * @return The new matrix, filled with zeros.
+     * @throws IOException If the temporary file cannot be created or mapped.
+     */
+    public static TACMatrix map(int[] offsets, int rows, int frames, 
+            int width, int height, boolean single_precision) 
+            throws IOException {
+
+        long row_size = (long) Math.max(1, frames) * 
+                        (single_precision ? 4 : 8);
+        return map(offsets, rows, frames, width, height, single_precision,
+                   (int) Math.max(1, Integer.MAX_VALUE / row_size));
+
+    }
+
+    /*
+     * Same as above, with chunks of the given number of rows. 
+     * Package-private, so that the tests can use small chunks.
+     */
+    static TACMatrix map(int[] offsets, int rows, int frames, int width, 
+            int height, boolean single_precision, int chunk_rows) 
+            throws IOException {
+
+        long row_size = (long) Math.max(1, frames) * 
+                        (single_precision ? 4 : 8);
+        TACMatrix m = new TACMatrix(offsets, rows, frames, width, height,
+                chunk_rows, single_precision, true);
+
+        int chunks = _chunks(rows, m.chunk_rows);
+        if (single_precision) m.fchunks = new FloatBuffer[chunks];
+        else m.dchunks = new DoubleBuffer[chunks];
+
+        m.file = File.createTempFile("jclustering", ".tac");
+        m.file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(m.file, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            for (int i = 0; i < chunks; i++) {
+                long start = (long) i * m.chunk_rows * row_size;
+                MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_WRITE,
+                        start, m._chunkSize(i) * row_size);
+                b.order(ByteOrder.nativeOrder());
+                if (single_precision) m.fchunks[i] = b.asFloatBuffer();
+                else m.dchunks[i] = b.asDoubleBuffer();
+            }
+        } catch (IOException e) {
+            m.close();
+            throw e;
+        } finally {
+            // Mappings are still valid after closing the channel
+            raf.close();
+        }
+
+        return m;
+
+    }
+
+    /**
+     * Creates a new, empty matrix with the same rows and frames as this
+     * one, stored in the same way (precision, Java heap or memory-mapped
+     * file). Used for values derived from the TACs, such as the caches of
+     * {@link VoxelFeatures}, so that they do not take more memory than the
+     * user chose for the TACs themselves. Its creator fills it with
+     * {@link #setTACs(int, int, double[])}.
+     *
+     * @return The new matrix, filled with zeros.
+     * @throws IOException If the temporary file for a memory-mapped matrix
+     *             cannot be created or mapped.
+     */
+    public TACMatrix createSibling() throws IOException {
+
+        _checkOpen();
+        if (isMapped()) 
+            return map(offsets, rows, frames, width, height, 
+                       isSinglePrecision(), chunk_rows);
+        return allocate(offsets, rows, frames, width, height, 
+                        isSinglePrecision(), chunk_rows);
+
+    }
+
+    /**
+     * @return The number of rows (TACs) stored in this matrix.
+     */
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * @return The number of frames of each TAC.
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return {@code true} if the values are stored in single precision.
+     */
+    public boolean isSinglePrecision() {
+        return single;
+    }
+
+    /**
+     * @return {@code true} if the values are stored in a memory-mapped
+     *         file instead of in the Java heap.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return The internal packed array for a double precision matrix in 
+     *         the Java heap, or {@code null} if it is stored in single 
+     *         precision, mapped or split in several arrays. Row {@code i}
+     *         starts at index {@code i * getFrames()}. It must not be
+     *         modified.
+     */
+    public double[] getData() {
+        _checkOpen();
+        return dheap != null && dheap.length == 1 ? dheap[0] : null;
+    }
+
+    /**
+     * @return The internal packed array for a single precision matrix in
+     *         the Java heap, or {@code null} if it is stored in double 
+     *         precision, mapped or split in several arrays. Row {@code i}
+     *         starts at index {@code i * getFrames()}. It must not be
+     *         modified.
+     */
+    public float[] getFloatData() {
+        _checkOpen();
+        return fheap != null && fheap.length == 1 ? fheap[0] : null;
+    }
+
+    /**
+     * Returns the internal array that holds a row of a double precision
+     * matrix in the Java heap, so that it can be read without copying it.
+     * The row starts at index {@link #getChunkOffset(int)}.
+     *
+     * @param row The row index.
+     * @return The array, or {@code null} if the matrix is stored in single
+     *         precision or mapped. It must not be modified.
+     */
+    public double[] getChunk(int row) {
+        _checkOpen();
+        return dheap != null ? dheap[row / chunk_rows] : null;
+    }
+
+    /**
+     * @param row The row index.
+     * @return The position of the first value of the row in the array
+     *         returned by {@link #getChunk(int)}.
+     */
+    public int getChunkOffset(int row) {
+        return (row % chunk_rows) * frames;
+    }
+
+    /**
+     * Copies the TAC stored in a given row into a new array.
+     *
+     * @param row The row index.
+     * @return A new array containing the TAC.
+     */
+    public double[] getTAC(int row) {
+        return getTAC(row, new double[frames]);
+    }
+
+    /**
+     * Copies the TAC stored in a given row into the provided array.
+     *
+     * @param row The row index.
+     * @param dest The destination array, at least {@link #getFrames()} long.
+     * @return The {@code dest} array.
+     */
+    public double[] getTAC(int row, double[] dest) {
+        return getTACs(row, row + 1, dest);
+    }
+
+    /**
+     * Copies the TACs stored between rows {@code from} (inclusive) and
+     * {@code to} (exclusive) into the provided array, one after the other.
+     *
+     * @param from The first row.
+     * @param to The last row (exclusive).
+     * @param dest The destination array, at least
+     *            {@code (to - from) * getFrames()} long.
+     * @return The {@code dest} array.
+     */
+    public double[] getTACs(int from, int to, double[] dest) {
+
+        _checkOpen();
+
+        // Absolute gets do not change the state of mapped buffers, so this
+        // is safe to call from several threads at the same time.
+        int d = 0;
+        for (int row = from; row < to; ) {
+            int chunk = row / chunk_rows;
+            int end = (int) Math.min(to, (long) (chunk + 1) * chunk_rows);
+            int pos = (row - chunk * chunk_rows) * frames;
+            int length = (end - row) * frames;
+            if (dheap != null) {
+                System.arraycopy(dheap[chunk], pos, dest, d, length);
+            } else if (fheap != null) {
+                float[] f = fheap[chunk];
+                for (int i = 0; i < length; i++)
+                    dest[d + i] = f[pos + i];
+            } else if (dchunks != null) {
+                DoubleBuffer b = dchunks[chunk];
+                for (int i = 0; i < length; i++)
+                    dest[d + i] = b.get(pos + i);
+            } else {
+                FloatBuffer b = fchunks[chunk];
+                for (int i = 0; i < length; i++)
+                    dest[d + i] = b.get(pos + i);
+            }
+            d += length;
+            row = end;
+        }
+
+        return dest;
+    }
+
+    /**
+     * Stores the TACs for rows between {@code from} (inclusive) and
+     * {@code to} (exclusive), packed in {@code src}. Only for matrices that
+     * are being filled by their creator: matrices built by 
+     * {@link ImagePlusHyp} must not be modified. Different rows can be
+     * stored from different threads at the same time.
+     *
+     * @param from The first row.
+     * @param to The last row (exclusive).
+     * @param src The TACs, {@code (to - from) * getFrames()} values.
+     */
+    public void setTACs(int from, int to, double[] src) {
+
+        _checkOpen();
+        int s = 0;
+        for (int row = from; row < to; ) {
+            int chunk = row / chunk_rows;
+            int end = (int) Math.min(to, (long) (chunk + 1) * chunk_rows);
+            int pos = (row - chunk * chunk_rows) * frames;
+            int length = (end - row) * frames;
+            if (dheap != null) {
+                System.arraycopy(src, s, dheap[chunk], pos, length);
+            } else if (fheap != null) {
+                float[] f = fheap[chunk];
+                for (int i = 0; i < length; i++)
+                    f[pos + i] = (float) src[s + i];
+            } else if (dchunks != null) {
+                DoubleBuffer b = dchunks[chunk];
+                for (int i = 0; i < length; i++)
+                    b.put(pos + i, src[s + i]);
+            } else {
+                FloatBuffer b = fchunks[chunk];
+                for (int i = 0; i < length; i++)
+                    b.put(pos + i, (float) src[s + i]);
+            }
+            s += length;
+            row = end;
+        }
+
+    }
+
+    /**
+     * @param row The row index.
+     * @param frame The frame (0-based).
+     * @return The value for the given row and frame.
+     */
+    public double get(int row, int frame) {
+        _checkOpen();
+        int chunk = row / chunk_rows;
+        int i = (row - chunk * chunk_rows) * frames + frame;
+        if (dheap != null) return dheap[chunk][i];
+        if (fheap != null) return fheap[chunk][i];
+        return dchunks != null ? dchunks[chunk].get(i) : 
+                                 fchunks[chunk].get(i);
+    }
+
+    /**
+     * @param row The row index.
+     * @return X-coordinate for the voxel stored in that row.
+     */
+    public int getX(int row) {
+        return offsets[row] % width;
+    }
+
+    /**
+     * @param row The row index.
+     * @return Y-coordinate for the voxel stored in that row.
+     */
+    public int getY(int row) {
+        return (offsets[row] / width) % height;
+    }
+
+    /**
+     * @param row The row index.
+     * @return Slice (1-based) for the voxel stored in that row.
+     */
+    public int getSlice(int row) {
+        return offsets[row] / (width * height) + 1;
+    }
+
+    /**
+     * Finds the row that stores the TAC for the given coordinates.
+     *
+     * @param x X-coordinate.
+     * @param y Y-coordinate.
+     * @param slice Slice (1-based).
+     * @return The row index, or a negative value if that voxel is not
+     *         stored in this matrix (it was masked).
+     */
+    public int find(int x, int y, int slice) {
+        int offset = x + y * width + (slice - 1) * width * height;
+        int row = Arrays.binarySearch(offsets, 0, rows, offset);
+        return row < 0 ? -1 : row;
+    }
+
+    /**
+     * Releases the memory or the backing file of the matrix. The matrix
+     * must not be used after calling this method: its data cannot be read
+     * (an {@link IllegalStateException} is thrown), but it still reports
+     * how it was stored. Calling it again has no effect.
+     * <p>
+     * Mapped buffers cannot be unmapped explicitly: the memory is given
+     * back to the system once they are garbage collected. On some systems
+     * the file cannot be deleted while it is still mapped, so it will be
+     * deleted when the virtual machine exits.
+     */
+    public void close() {
+
+        closed = true;
+        dheap = null;
+        fheap = null;
+        dchunks = null;
+        fchunks = null;
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+
+    }
+
+}
@@ -5,6 +5,7 @@ import static jclustering.Constants.PACKAGE_NAME;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 
 import java.io.File;
 import java.io.IOException;
@@ -12,6 +13,10 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -20,8 +25,6 @@ import org.apache.commons.math3.linear.RealMatrix;
 import jclustering.metrics.ClusteringMetric;
 import jclustering.techniques.ClusteringTechnique;
 
-import static jclustering.MathUtils.isMasked;
-
 /**
  * Auxiliary class with misc static methods
  * 
@@ -322,47 +325,120 @@ public class Utils {
         int components = rm.getRowDimension();
         
         // Create dynamic image
+        ImagePlus image = createComponentImage(name, dim, components);
+        
+        // Assign voxels to values. Each column of the matrix belongs to
+        // one unmasked voxel, in the same order in which they are returned
+        // by the ImagePlusHypIterator object (first x, then y, then slices),
+        // so the mask index of the image provides their coordinates.
+        int n = ip.getVoxelCount();
+        for (int column_index = 0; column_index < n; column_index++) {
+            
+            setComponents(image, ip.getX(column_index), 
+                          ip.getY(column_index), ip.getSlice(column_index), 
+                          rm.getColumn(column_index));
+        }        
+        
+        return image;
+        
+    }
+    
+    /**
+     * Creates an empty 32-bit dynamic image to store the components computed
+     * by techniques such as PCA, with one frame per component.
+     * @param name The name for the new image.
+     * @param dim The dimensions of the original image.
+     * @param components The number of components (frames).
+     * @return The newly generated {@code ImagePlus} object.
+     */
+    public static ImagePlus createComponentImage(String name, int [] dim,
+            int components) {
+        
         ImagePlus image = IJ.createImage(name, "32-bit", 
                                              dim[0], dim[1],
                                              dim[3] * components);
         image.setDimensions(1, dim[3], components);
         image.setOpenAsHyperStack(true);
         
+        return image;
+        
+    }
+    
+    /**
+     * Sets the components for a given voxel in an image created with
+     * {@link #createComponentImage(String, int[], int)}.
+     * @param image The component image.
+     * @param x x-coordinate.
+     * @param y y-coordinate.
+     * @param slice Slice number (1-based).
+     * @param comp The value for each component.
+     */
+    public static void setComponents(ImagePlus image, int x, int y, 
+            int slice, double [] comp) {
+        
         // Get stack for easy access
         ImageStack is = image.getStack();
         
-        int column_index = 0;
+        // Iterate through the component and set the values.
+        // Each row of the component is in one frame.
+        for (int t = 0; t < comp.length; t++) {
+            // Get internal slice number
+            int sn = image.getStackIndex(1, slice, t + 1);
+            is.setVoxel(x, y, sn - 1, comp[t]);
+        }
         
-        // Assign voxels to values. It is important to iterate the image
-        // in the correct order (first x, then y, then slices), because
-        // that is the way the images are normally processed when using
-        // the ImagePlusHypIterator object.
-        for(int z = 0; z < dim[3]; z++) {
-            for(int y = 0; y < dim[1]; y++) {
-                for(int x = 0; x < dim[0]; x++) {
-                    
-                    // Test it the TAC is noise. If it is noise, 
-                    // jump to the next one
-                    double [] tac = ip.getTAC(x, y, z + 1);
-                    
-                    // Check for masked voxels                    
-                    if (!isMasked(tac, ip.CALZERO)) {
-                        // Not masked: get the next column
-                        double [] comp = rm.getColumn(column_index++);
-                        
-                        // Iterate through the component and set the values.
-                        // Each row of the component is in one frame.
-                        for (int t = 0; t < components; t++) {
-                            // Get internal slice number
-                            int sn = image.getStackIndex(1, z + 1, t + 1);
-                            is.setVoxel(x, y, sn - 1, comp[t]);                            
-                        }       
-                    }                   
-                }
-            }
-        }        
+    }
+    
+    /**
+     * @return The number of threads to be used for parallel computations,
+     *         as set in ImageJ (Edit &gt; Options &gt; Memory &amp; Threads).
+     */
+    public static int getThreads() {
         
-        return image;
+        return Math.max(1, Prefs.getThreads());
+        
+    }
+    
+    /**
+     * Runs the given tasks using up to {@link #getThreads()} threads and
+     * waits until all of them have finished. Typically, each task walks 
+     * through one of the {@link VoxelCursor} objects returned by 
+     * {@link ImagePlusHyp#split(int)}.
+     * 
+     * @param tasks The tasks to run.
+     * @throws RuntimeException If any of the tasks throws an exception, or
+     *             if the calling thread is interrupted while waiting.
+     */
+    public static void runInParallel(Runnable[] tasks) {
+        
+        // Do not bother creating threads for a single task
+        if (tasks.length == 1) {
+            tasks[0].run();
+            return;
+        }
+        
+        ExecutorService es = Executors.newFixedThreadPool(
+                                 Math.min(getThreads(), tasks.length));
+        
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (Runnable r : tasks) 
+                results.add(es.submit(r));
+            for (Future<?> f : results)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            es.shutdownNow();
+        }
         
     }
 
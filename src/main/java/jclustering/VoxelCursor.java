@@ -0,0 +1,174 @@
+package jclustering;
+
+/**
+ * Allocation-free alternative to {@link ImagePlusHypIterator}. A cursor is a
+ * single, mutable view of the current voxel: every call to {@link #next()}
+ * overwrites the coordinates and the {@link #tac} array with the data of the
+ * next unmasked voxel, in the same order used by the iterator. No object is
+ * created while walking through the image.
+ * <p>
+ * As the {@link #tac} array is reused, it must be copied if it needs to be
+ * kept after the next call to {@link #next()}. {@link #toVoxel()} does
+ * exactly that.
+ * <p>
+ * For virtual stacks, the cursor reads the TACs of one slice at a time
+ * (a <em>slab</em>) with {@link ImagePlusHyp#getTACs(int, int, double[])},
+ * loading each frame plane once per slice instead of once per voxel. Only
+ * one slab is kept in memory.
+ * <p>
+ * Cursors are obtained with {@link ImagePlusHyp#cursor()}.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class VoxelCursor {
+
+    /**
+     * X-coordinate for the current voxel.
+     */
+    public int x;
+    /**
+     * Y-coordinate for the current voxel.
+     */
+    public int y;
+    /**
+     * Slice (1-based) for the current voxel.
+     */
+    public int slice;
+    /**
+     * Time-activity curve for the current voxel. Overwritten on each call
+     * to {@link #next()}.
+     */
+    public final double[] tac;
+
+    // Data
+    private final ImagePlusHyp ip;
+    private final int[] index;
+
+    // Image sizes
+    private final int width, plane, frames;
+
+    // Next row to be read, and end of the range (exclusive)
+    private int row, to;
+
+    // Slab of TACs read in advance (virtual stacks only), for rows between
+    // slab_from (inclusive) and slab_to (exclusive)
+    private double[] slab;
+    private int slab_from, slab_to;
+
+    /*
+     * Cursors are created by ImagePlusHyp.
+     */
+    VoxelCursor(ImagePlusHyp ip, double[] tac, int from, int to) {
+
+        this.ip = ip;
+        this.tac = tac;
+
+        // Only the voxels in the mask index are visited, so masked voxels
+        // are never read.
+        this.index = ip.getMaskIndex();
+
+        int[] dim = ip.getDimensions();
+        width = dim[0];
+        plane = dim[0] * dim[1];
+        frames = dim[4];
+
+        this.row = from;
+        this.to = to;
+
+    }
+
+    /**
+     * Moves the cursor to the next unmasked voxel.
+     *
+     * @return {@code true} if the cursor points to a new voxel,
+     *         {@code false} if there are no more voxels.
+     */
+    public boolean next() {
+
+        if (row >= to) return false;
+
+        int offset = index[row];
+        x = offset % width;
+        y = (offset % plane) / width;
+        slice = offset / plane + 1;
+
+        if (row < slab_to) {
+            System.arraycopy(slab, (row - slab_from) * frames, tac, 0,
+                             frames);
+        } else if (ip.isVirtual() && ip.getTACMatrix() == null) {
+            _readSlab();
+            System.arraycopy(slab, 0, tac, 0, frames);
+        } else {
+            ip.getTAC(row, tac);
+        }
+        row++;
+
+        return true;
+
+    }
+
+    /*
+     * Reads the TACs from the current row to the end of its slice (or of
+     * the range, if it comes first).
+     */
+    private void _readSlab() {
+
+        slab_from = row;
+        slab_to = Math.min(to, ip.getFirstRow(slice + 1));
+
+        int length = (slab_to - slab_from) * frames;
+        if (slab == null || slab.length < length) slab = new double[length];
+        ip.getTACs(slab_from, slab_to, slab);
+
+    }
+
+    /**
+     * @return The row (position in the mask index of the
+     *         {@link ImagePlusHyp}) of the current voxel.
+     */
+    public int getRow() {
+        return row - 1;
+    }
+
+    /**
+     * @return The number of voxels this cursor has yet to visit.
+     */
+    public int remaining() {
+        return to - row;
+    }
+
+    /**
+     * Splits the voxels that this cursor has not visited yet in two halves.
+     * The returned cursor visits the first half, and this cursor is left
+     * with the second one, so that both together visit exactly the same
+     * voxels this cursor would have visited. The new cursor gets its own
+     * TAC buffer, so both can be used from different threads.
+     * <p>
+     * This allows splitting the work recursively (for instance, in a
+     * divide-and-conquer parallel task) without knowing the image layout.
+     *
+     * @return A new cursor, or {@code null} if there are less than two
+     *         voxels left.
+     */
+    public VoxelCursor trySplit() {
+
+        int n = to - row;
+        if (n < 2) return null;
+
+        int mid = row + n / 2;
+        VoxelCursor res = new VoxelCursor(ip, new double[tac.length], row, 
+                                          mid);
+        row = mid;
+
+        return res;
+
+    }
+
+    /**
+     * @return A new {@link Voxel} holding a copy of the current voxel.
+     */
+    public Voxel toVoxel() {
+        return new Voxel(x, y, slice, tac.clone());
+    }
+
+}
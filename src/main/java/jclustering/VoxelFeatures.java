@@ -0,0 +1,390 @@
+package jclustering;
+
+import org.apache.commons.math3.stat.StatUtils;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Cache of values derived from the TAC of every unmasked voxel of an
+ * {@link ImagePlusHyp}: norms, means, standard deviations, peak values and
+ * normalized, ranked (and normalized) and smoothed TACs. Metrics and
+ * techniques compare the same voxels against different centroids many
+ * times, so the voxel side of those computations only needs to be done
+ * once per run.
+ * <p>
+ * Voxels are identified by their row (position in the mask index, see
+ * {@link ImagePlusHyp#getMaskIndex()}), as given by
+ * {@link VoxelCursor#getRow()}. Each group of features is computed the
+ * first time it is requested, in a single pass through the image, so
+ * features that are never used take no memory. Scalar features take
+ * {@code 8 * voxels} bytes each. TAC-like features are stored in
+ * {@link TACMatrix} objects, in the same way as the TAC matrix of the image
+ * (see {@link ImagePlusHyp#newDerivedMatrix()}).
+ * <p>
+ * The cache is obtained with {@link ImagePlusHyp#getFeatures()}, and it is
+ * discarded by {@link ImagePlusHyp#clearCache()}. All methods can be
+ * called from several threads at the same time.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class VoxelFeatures {
+
+    private final ImagePlusHyp ip;
+    private final int frames;
+
+    // Scalar features, one value per row
+    private volatile double[] norms;
+    private double[] means, stds, peaks;
+
+    // TAC-like features
+    private volatile TACMatrix normalized;
+    private volatile TACMatrix ranks;
+    private volatile TACMatrix normalized_ranks;
+    private volatile TACMatrix smoothed;
+
+    /*
+     * Feature caches are created by ImagePlusHyp.
+     */
+    VoxelFeatures(ImagePlusHyp ip) {
+
+        this.ip = ip;
+        this.frames = ip.getDimensions()[4];
+
+    }
+
+    /**
+     * @param row The row of an unmasked voxel.
+     * @return The Euclidean norm of its TAC.
+     */
+    public double getNorm(int row) {
+        _buildScalars();
+        return norms[row];
+    }
+
+    /**
+     * @param row The row of an unmasked voxel.
+     * @return The mean value of its TAC.
+     */
+    public double getMean(int row) {
+        _buildScalars();
+        return means[row];
+    }
+
+    /**
+     * @param row The row of an unmasked voxel.
+     * @return The (bias-corrected) standard deviation of its TAC, or 0.0
+     *         if it has a single frame.
+     */
+    public double getStd(int row) {
+        _buildScalars();
+        return stds[row];
+    }
+
+    /**
+     * @param row The row of an unmasked voxel.
+     * @return The maximum value of its TAC.
+     */
+    public double getPeak(int row) {
+        _buildScalars();
+        return peaks[row];
+    }
+
+    /**
+     * Copies the normalized TAC of a voxel (see {@link #normalize}) into
+     * {@code dest}.
+     *
+     * @param row The row of an unmasked voxel.
+     * @param dest Destination array, as long as the number of frames.
+     * @return The {@code dest} array.
+     */
+    public double[] getNormalized(int row, double[] dest) {
+
+        return getNormalizedMatrix().getTAC(row, dest);
+
+    }
+
+    /**
+     * Copies the ranks of the values of the TAC of a voxel (see
+     * {@link #rank}) into {@code dest}.
+     *
+     * @param row The row of an unmasked voxel.
+     * @param dest Destination array, as long as the number of frames.
+     * @return The {@code dest} array.
+     */
+    public double[] getRanks(int row, double[] dest) {
+
+        TACMatrix r = ranks;
+        if (r == null) r = _buildRanks();
+        return r.getTAC(row, dest);
+
+    }
+
+    /**
+     * Copies the normalized ranks (see {@link #rank} and 
+     * {@link #normalize}) of the TAC of a voxel into {@code dest}. The dot
+     * product of two of them is the Spearman's correlation between both
+     * TACs.
+     *
+     * @param row The row of an unmasked voxel.
+     * @param dest Destination array, as long as the number of frames.
+     * @return The {@code dest} array.
+     */
+    public double[] getNormalizedRanks(int row, double[] dest) {
+
+        return getNormalizedRankMatrix().getTAC(row, dest);
+
+    }
+
+    /**
+     * @return The normalized TACs of all voxels, one per row. It must not 
+     *         be modified.
+     */
+    public TACMatrix getNormalizedMatrix() {
+
+        TACMatrix n = normalized;
+        return n != null ? n : _buildNormalized();
+
+    }
+
+    /**
+     * @return The normalized ranks of all voxels, one per row. It must not
+     *         be modified.
+     */
+    public TACMatrix getNormalizedRankMatrix() {
+
+        TACMatrix n = normalized_ranks;
+        return n != null ? n : _buildNormalizedRanks();
+
+    }
+
+    /**
+     * Copies the smoothed TAC of a voxel (see {@link MathUtils#smooth})
+     * into {@code dest}.
+     *
+     * @param row The row of an unmasked voxel.
+     * @param dest Destination array, as long as the number of frames.
+     * @return The {@code dest} array.
+     */
+    public double[] getSmoothed(int row, double[] dest) {
+
+        TACMatrix s = smoothed;
+        if (s == null) s = _buildSmoothed();
+        return s.getTAC(row, dest);
+
+    }
+
+    /**
+     * Centers a TAC on its mean and scales it to unit norm, so that the
+     * Pearson's correlation between two TACs is the dot product of their
+     * normalized versions. Constant TACs give {@code NaN} values.
+     *
+     * @param tac The TAC.
+     * @param dest Destination array, as long as {@code tac}. May be
+     *            {@code tac} itself.
+     * @return The {@code dest} array.
+     */
+    public static double[] normalize(double[] tac, double[] dest) {
+
+        double mean = 0.0;
+        for (int i = 0; i < tac.length; i++)
+            mean += tac[i];
+        mean /= tac.length;
+
+        double ss = 0.0;
+        for (int i = 0; i < tac.length; i++) {
+            double d = tac[i] - mean;
+            ss += d * d;
+        }
+        double norm = FastMath.sqrt(ss);
+
+        for (int i = 0; i < tac.length; i++)
+            dest[i] = (tac[i] - mean) / norm;
+
+        return dest;
+
+    }
+
+    /**
+     * Ranks the values of a TAC, in the same way as the Spearman's
+     * correlation implementation of Commons Math does: ranks start at 1,
+     * ties get their average rank and {@code NaN} values are taken as the
+     * biggest ones. TACs are short, so an insertion sort is used.
+     *
+     * @param tac The TAC.
+     * @param dest Destination array, as long as {@code tac}. Must not be
+     *            {@code tac} itself.
+     * @return The {@code dest} array.
+     */
+    public static double[] rank(double[] tac, double[] dest) {
+
+        int n = tac.length;
+        int[] order = new int[n];
+
+        // Sort the indices by value. Double.compare() puts NaN last.
+        for (int i = 0; i < n; i++) {
+            int j = i;
+            while (j > 0 && Double.compare(tac[order[j - 1]], tac[i]) > 0) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+
+        // Give each group of ties the average of their positions
+        int first = 0;
+        while (first < n) {
+            int last = first;
+            double value = _rankValue(tac[order[first]]);
+            while (last + 1 < n && 
+                   _rankValue(tac[order[last + 1]]) == value)
+                last++;
+            double r = (first + last + 2) / 2.0;
+            for (int i = first; i <= last; i++)
+                dest[order[i]] = r;
+            first = last + 1;
+        }
+
+        return dest;
+
+    }
+
+    /*
+     * NaN values are ranked as positive infinity.
+     */
+    private static double _rankValue(double d) {
+        return Double.isNaN(d) ? Double.POSITIVE_INFINITY : d;
+    }
+
+    /*
+     * Computes all the scalar features in one pass.
+     */
+    private void _buildScalars() {
+
+        if (norms != null) return;
+
+        synchronized (this) {
+
+            if (norms != null) return;
+
+            int n = ip.getVoxelCount();
+            double[] nr = new double[n];
+            means = new double[n];
+            stds = new double[n];
+            peaks = new double[n];
+
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {
+                int row = v.getRow();
+                double[] tac = v.tac;
+
+                // Same kernel used by the metrics, so that cached norms
+                // are equal to the ones they would compute
+                double ss = MathUtils.dot(tac, tac, frames);
+                double sum = 0.0;
+                for (int i = 0; i < frames; i++) {
+                    sum += tac[i];
+                }
+                double mean = sum / frames;
+                double dev = 0.0;
+                for (int i = 0; i < frames; i++) {
+                    double d = tac[i] - mean;
+                    dev += d * d;
+                }
+
+                nr[row] = FastMath.sqrt(ss);
+                means[row] = mean;
+                // Single frame images: 0.0, as Commons Math does
+                stds[row] = frames > 1 ? 
+                            FastMath.sqrt(dev / (frames - 1)) : 0.0;
+                peaks[row] = StatUtils.max(tac);
+            }
+
+            // Published last, as it signals that all the arrays are ready
+            norms = nr;
+
+        }
+
+    }
+
+    private synchronized TACMatrix _buildNormalized() {
+
+        if (normalized == null) {
+            TACMatrix res = ip.newDerivedMatrix();
+            double[] buf = new double[frames];
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {
+                int row = v.getRow();
+                res.setTACs(row, row + 1, normalize(v.tac, buf));
+            }
+            normalized = res;
+        }
+
+        return normalized;
+
+    }
+
+    private synchronized TACMatrix _buildRanks() {
+
+        if (ranks == null) {
+            TACMatrix res = ip.newDerivedMatrix();
+            double[] buf = new double[frames];
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {
+                int row = v.getRow();
+                res.setTACs(row, row + 1, rank(v.tac, buf));
+            }
+            ranks = res;
+        }
+
+        return ranks;
+
+    }
+
+    private synchronized TACMatrix _buildNormalizedRanks() {
+
+        if (normalized_ranks == null) {
+            TACMatrix res = ip.newDerivedMatrix();
+            double[] buf = new double[frames];
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {
+                int row = v.getRow();
+                res.setTACs(row, row + 1, normalize(rank(v.tac, buf), buf));
+            }
+            normalized_ranks = res;
+        }
+
+        return normalized_ranks;
+
+    }
+
+    private synchronized TACMatrix _buildSmoothed() {
+
+        if (smoothed == null) {
+            TACMatrix res = ip.newDerivedMatrix();
+            double[] buf = new double[frames];
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {
+                int row = v.getRow();
+                res.setTACs(row, row + 1, MathUtils.smooth(v.tac, buf));
+            }
+            smoothed = res;
+        }
+
+        return smoothed;
+
+    }
+
+    /*
+     * Releases the TAC-like features. Called by ImagePlusHyp when the cache
+     * is cleared.
+     */
+    synchronized void close() {
+
+        if (normalized != null) normalized.close();
+        if (ranks != null) ranks.close();
+        if (normalized_ranks != null) normalized_ranks.close();
+        if (smoothed != null) smoothed.close();
+        normalized = ranks = normalized_ranks = smoothed = null;
+
+    }
+
+}
@@ -5,17 +5,31 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.util.EnumSet;
 
 import javax.swing.JPanel;
 
 import jclustering.GUIUtils;
 import jclustering.ImagePlusHyp;
+import jclustering.MathUtils;
 import jclustering.Voxel;
+import jclustering.VoxelCursor;
+import jclustering.VoxelFeatures;
 import jclustering.techniques.ClusteringTechnique;
 
 /**
  * This abstract class provides a template with the basic functions that a
  * metric should implement, specially the distance(double [], double[]) method.
+ * <p>
+ * Thread safety: techniques may compute distances from several threads.
+ * A metric that declares {@link Capability#THREAD_SAFE} promises that its
+ * distance methods ({@code distance}, {@code distances},
+ * {@code comparisonDistances}, {@code boundedDistance}, {@code prepare}
+ * and {@code toDistance}) do not modify the object after {@link #init()},
+ * so that a single instance can be shared. Metrics that need per-call
+ * scratch state must instead override {@link #copy()}, returning an
+ * instance that shares the read-only state computed by {@link #init()}.
+ * Techniques get one instance per thread with {@link #copy()}.
  * 
  * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
  * 
@@ -43,6 +57,337 @@ public abstract class ClusteringMetric implements ActionListener, ItemListener {
      */
     public abstract double distance(double[] data, double[] centroid);
     
+    /**
+     * Computes the distance between the TAC of an unmasked voxel of the
+     * working image and a cluster centroid. The {@code row} of the voxel
+     * (see {@link VoxelCursor#getRow()}) allows the metric to use the
+     * values stored in {@link ImagePlusHyp#getFeatures()}, so that the
+     * voxel side of the computation is done only once per run.
+     * <p>
+     * By default, it just calls {@link #distance(double[], double[])}.
+     * Metrics that can take advantage of the {@link VoxelFeatures} cache
+     * should override this method and return the same value.
+     * 
+     * @param row The row of the voxel, or a negative value if {@code data}
+     *            is not the TAC of a voxel of the working image (then the
+     *            cache must not be used).
+     * @param data The TAC of the voxel.
+     * @param centroid The cluster centroid.
+     * @return The distance between both arrays.
+     */
+    public double distance(int row, double[] data, double[] centroid) {
+        
+        return distance(data, centroid);
+        
+    }
+    
+    /**
+     * Precomputes the centroid side of the distance for a set of centroids
+     * that are going to be compared with many TACs, as in every iteration
+     * of a k-means. The result must only be used with
+     * {@link #distances(int, double[], double[][], double[])} and
+     * {@link #distances(int, int, double[], double[][], double[])}.
+     * <p>
+     * By default, it returns the same array. Metrics that override this
+     * method must also override
+     * {@link #distances(int, double[], double[][], double[])}.
+     * 
+     * @param centroids The cluster centroids. They are not modified.
+     * @return The prepared centroids, in the same order.
+     */
+    public double[][] prepare(double[][] centroids) {
+        
+        return centroids;
+        
+    }
+    
+    /**
+     * Computes the distance between one TAC and a whole set of centroids
+     * at once. {@code dest[j]} is set to the same value that 
+     * {@link #distance(int, double[], double[])} would return for the
+     * {@code j}-th centroid.
+     * <p>
+     * By default, it calls {@link #distance(int, double[], double[])} for
+     * every centroid. Metrics should override it when the voxel side of
+     * the computation can be shared by all the centroids.
+     * 
+     * @param row The row of the voxel, or a negative value if {@code data}
+     *            is not the TAC of a voxel of the working image.
+     * @param data The TAC.
+     * @param prepared The centroids, as returned by 
+     *            {@link #prepare(double[][])}.
+     * @param dest Destination array, at least {@code prepared.length} long.
+     */
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+        
+        for (int j = 0; j < prepared.length; j++)
+            dest[j] = distance(row, data, prepared[j]);
+        
+    }
+    
+    /**
+     * Computes the distance between a block of TACs of consecutive rows and
+     * a whole set of centroids. The TACs are packed one after the other in
+     * {@code block}, as returned by
+     * {@link ImagePlusHyp#getTACs(int, int, double[])}, and the distance
+     * between row {@code r} and the {@code j}-th centroid is written to
+     * {@code dest[(r - from) * prepared.length + j]}.
+     * <p>
+     * By default, it calls 
+     * {@link #distances(int, double[], double[][], double[])} for every 
+     * row.
+     * 
+     * @param from The first row.
+     * @param to The last row (exclusive).
+     * @param block The packed TACs, {@code (to - from) * frames} long.
+     * @param prepared The centroids, as returned by 
+     *            {@link #prepare(double[][])}.
+     * @param dest Destination array, at least 
+     *            {@code (to - from) * prepared.length} long.
+     */
+    public void distances(int from, int to, double[] block, 
+                          double[][] prepared, double[] dest) {
+        
+        int k = prepared.length;
+        int frames = ip.getDimensions()[4];
+        double[] tac = new double[frames];
+        double[] d = new double[k];
+        
+        for (int r = from; r < to; r++) {
+            System.arraycopy(block, (r - from) * frames, tac, 0, frames);
+            distances(r, tac, prepared, d);
+            System.arraycopy(d, 0, dest, (r - from) * k, k);
+        }
+
+    }
+
+    /**
+     * Same as {@link #distances(int, double[], double[][], double[])}, but
+     * the values written to {@code dest} only need to be in the same order
+     * as the distances (a smaller value means a smaller distance), so that
+     * the last, monotone step of the computation can be skipped: square
+     * roots, {@code 1/p} powers, divisions by the number of frames... They
+     * are meant for loops that look for the closest (or furthest) centroid.
+     * {@link #toDistance(double)} turns them back into distances.
+     * <p>
+     * By default, it calls
+     * {@link #distances(int, double[], double[][], double[])}.
+     *
+     * @param row The row of the voxel, or a negative value if {@code data}
+     *            is not the TAC of a voxel of the working image.
+     * @param data The TAC.
+     * @param prepared The centroids, as returned by
+     *            {@link #prepare(double[][])}.
+     * @param dest Destination array, at least {@code prepared.length} long.
+     */
+    public void comparisonDistances(int row, double[] data,
+                                    double[][] prepared, double[] dest) {
+
+        distances(row, data, prepared, dest);
+
+    }
+
+    /**
+     * Turns a value computed by
+     * {@link #comparisonDistances(int, double[], double[][], double[])}
+     * into the actual distance. Metrics that override that method must
+     * also override this one. By default, it returns the same value.
+     *
+     * @param comparison The comparison value.
+     * @return The distance.
+     */
+    public double toDistance(double comparison) {
+
+        return comparison;
+
+    }
+
+    /**
+     * Computes the comparison value (see
+     * {@link #comparisonDistances(int, double[], double[][], double[])})
+     * between a TAC and one centroid, but stops as soon as it is known to
+     * be bigger than {@code bound}. Nearest-centroid searches pass the best
+     * value found so far, so that most centroids are discarded after
+     * looking at a few frames.
+     * <p>
+     * By default, the whole value is computed (and an array is allocated
+     * on each call). Metrics that implement this method efficiently must
+     * declare the {@link Capability#BOUNDED} capability.
+     *
+     * @param row The row of the voxel, or a negative value if {@code data}
+     *            is not the TAC of a voxel of the working image.
+     * @param data The TAC.
+     * @param prepared One centroid, as returned by
+     *            {@link #prepare(double[][])}.
+     * @param bound The bound.
+     * @return The same value that
+     *         {@link #comparisonDistances(int, double[], double[][], double[])}
+     *         would return, if it is not bigger than {@code bound}, or any
+     *         value bigger than {@code bound}.
+     */
+    public double boundedDistance(int row, double[] data, double[] prepared,
+                                  double bound) {
+
+        double[] d = new double[1];
+        comparisonDistances(row, data, new double[][] {prepared}, d);
+        return d[0];
+
+    }
+
+    /**
+     * Properties of a metric that techniques may rely on to skip work.
+     * See {@link ClusteringMetric#getCapabilities()}.
+     */
+    public enum Capability {
+        /**
+         * The distance is a true metric: it is symmetric and it satisfies
+         * the triangle inequality, so bound-based pruning (Elkan, Hamerly)
+         * is valid.
+         */
+        METRIC,
+        /**
+         * The distance is an Euclidean distance (up to a constant factor)
+         * between the TACs, or between fixed linear transforms of them,
+         * and the comparison values are proportional to its square. The
+         * mean of a set of TACs is the centroid that minimizes their
+         * comparison values.
+         */
+        EUCLIDEAN,
+        /**
+         * After {@link ClusteringMetric#init()}, the distance methods can
+         * be called from several threads at the same time.
+         */
+        THREAD_SAFE,
+        /**
+         * {@link ClusteringMetric#distances(int, double[], double[][], double[])}
+         * shares the voxel side of the computation among all the centroids,
+         * so it is faster than calling
+         * {@link ClusteringMetric#distance(int, double[], double[])} for
+         * each of them.
+         */
+        BATCH,
+        /**
+         * {@link ClusteringMetric#boundedDistance(int, double[], double[], double)}
+         * stops as soon as the bound is exceeded, so techniques should
+         * prefer it when looking for the closest centroid.
+         */
+        BOUNDED,
+        /**
+         * {@link ClusteringMetric#init()} does an expensive computation,
+         * such as a pass through the whole image.
+         */
+        EXPENSIVE_INIT
+    }
+
+    /**
+     * Approximate cost of computing one distance, for a voxel of the
+     * working image. See {@link ClusteringMetric#getCost()}.
+     */
+    public enum Cost {
+        /** A few operations per frame, such as a dot product. */
+        LOW,
+        /** More work per frame, or a pass over several arrays. */
+        MEDIUM,
+        /** Transcendental functions per frame, or more than linear. */
+        HIGH
+    }
+
+    /**
+     * Tells techniques which properties this metric has, so that they can
+     * turn on the optimizations that are valid for it. The result may 
+     * depend on the configuration of the metric (for instance, the value
+     * of {@code p} in {@link PNorm}).
+     * <p>
+     * By default, none: techniques must not assume anything about a
+     * metric unless it says so.
+     * 
+     * @return The capabilities of this metric. The set may be modified by
+     *         the caller.
+     */
+    public EnumSet<Capability> getCapabilities() {
+
+        return EnumSet.noneOf(Capability.class);
+
+    }
+
+    /**
+     * Shortcut for {@code getCapabilities().contains(c)}.
+     * 
+     * @param c The capability.
+     * @return {@code true} if this metric has it.
+     */
+    public boolean has(Capability c) {
+
+        return getCapabilities().contains(c);
+
+    }
+
+    /**
+     * Returns an instance of this metric that can be used from another
+     * thread at the same time as this one. It is called after
+     * {@link #init()}, and the copy must share (not recompute) whatever
+     * {@link #init()} computed. Centroids prepared by any of the instances
+     * (see {@link #prepare(double[][])}) must be valid for all of them.
+     * <p>
+     * By default, metrics with the {@link Capability#THREAD_SAFE}
+     * capability return themselves, and the rest return {@code null}.
+     * 
+     * @return An instance for another thread, or {@code null} if this
+     *         metric can only be used from one thread at a time.
+     */
+    public ClusteringMetric copy() {
+
+        return has(Capability.THREAD_SAFE) ? this : null;
+
+    }
+
+    /**
+     * @return The approximate cost of one distance. {@link Cost#MEDIUM} by
+     *         default.
+     */
+    public Cost getCost() {
+
+        return Cost.MEDIUM;
+
+    }
+
+    /**
+     * Turns the correlation between two TACs, centered and scaled to unit
+     * norm by {@link VoxelFeatures#normalize(double[], double[])}, into a
+     * distance ({@code 1 - r}). The first one is read from a packed array,
+     * so that the data from {@link VoxelFeatures} can be used without
+     * copying it. Used by the correlation metrics.
+     * 
+     * @param z Array holding the first normalized TAC.
+     * @param offset Position of the first TAC in {@code z}.
+     * @param c The second normalized TAC.
+     * @param t The number of frames.
+     * @return The distance, {@code 0.0} if both TACs are equal, or
+     *         {@link Double#MAX_VALUE} if it cannot be computed (for 
+     *         constant TACs).
+     */
+    protected static double correlationDistance(double[] z, int offset, 
+                                                double[] c, int t) {
+        
+        // Constant TACs give NaN values, and must not be taken as equal
+        if (Double.isNaN(c[0])) return Double.MAX_VALUE;
+        
+        // Same normalized contents: the correlation is exactly 1
+        int i = 0;
+        while (i < t && z[offset + i] == c[i]) i++;
+        if (i == t) return 0.0;
+        
+        // Turn a correlation score into a distance
+        double corr = 1.0 - MathUtils.dot(z, offset, c, t);
+        
+        if (!Double.isNaN(corr))
+            return corr;
+        else
+            return Double.MAX_VALUE;
+        
+    }
+    
     /**
      * Provides a shortcut for computing the distance between a {@link Voxel}
      * and any TAC.
@@ -1,7 +1,13 @@
 package jclustering.metrics;
 
+import java.util.Arrays;
+import java.util.EnumSet;
+
 import org.apache.commons.math3.util.FastMath;
 
+import static jclustering.MathUtils.cosine;
+import static jclustering.MathUtils.dot;
+
 /**
  * Computes the cosine between two given TACs (data type
  * {@code double[]}). The distance is then returned as {@code 1 - cos}, where
@@ -14,24 +20,79 @@ public class Cosine extends ClusteringMetric {
     @Override
     public double distance(double[] data, double[] centroid) {
         
-        double cos = 0.0;
-        double normdata = 0.0;
-        double normcentroid = 0.0;        
-        double dotprod = 0.0;     
+        // Dot product and both norms in a single pass
+        double cos = cosine(data, centroid, data.length);
         
-        for(int i = 0; i < data.length; i++) {
-            dotprod += data[i] * centroid[i];
-            normdata += data[i] * data[i];
-            normcentroid += centroid[i] * centroid[i];
-        }        
+        return 1 - cos;
         
-        normdata = FastMath.sqrt(normdata);
-        normcentroid = FastMath.sqrt(normcentroid);
+    }
+    
+    @Override
+    public double distance(int row, double[] data, double[] centroid) {
         
-        cos = dotprod / (normdata * normcentroid);
+        if (row < 0) return distance(data, centroid);
         
-        return 1 - cos;
+        // The norm of the voxel is taken from the feature cache
+        int t = data.length;
+        double dotprod = dot(data, centroid, t);
+        double normdata = ip.getFeatures().getNorm(row);
+        double normcentroid = FastMath.sqrt(dot(centroid, centroid, t));
+        
+        return 1 - dotprod / (normdata * normcentroid);
+        
+    }
+    
+    /**
+     * Appends the norm of each centroid to a copy of it, so that it is 
+     * computed only once.
+     */
+    @Override
+    public double[][] prepare(double[][] centroids) {
+        
+        double [][] res = new double[centroids.length][];
+        
+        for (int j = 0; j < centroids.length; j++) {
+            double [] c = centroids[j];
+            res[j] = Arrays.copyOf(c, c.length + 1);
+            res[j][c.length] = FastMath.sqrt(dot(c, c, c.length));
+        }
+        
+        return res;
         
     }
+    
+    @Override
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+        
+        int t = data.length;
+        double normdata;
+        
+        if (row >= 0) {
+            normdata = ip.getFeatures().getNorm(row);
+        } else {
+            normdata = FastMath.sqrt(dot(data, data, t));
+        }
+        
+        for (int j = 0; j < prepared.length; j++) {
+            double [] c = prepared[j];
+            dest[j] = 1 - dot(data, c, t) / (normdata * c[t]);
+        }
+        
+    }
+
+    /*
+     * 1 - cos is not a metric (it does not satisfy the triangle
+     * inequality).
+     */
+    @Override
+    public EnumSet<Capability> getCapabilities() {
+        return EnumSet.of(Capability.THREAD_SAFE, Capability.BATCH);
+    }
+
+    @Override
+    public Cost getCost() {
+        return Cost.LOW;
+    }
 
 }
@@ -3,72 +3,477 @@ package jclustering.metrics;
 import ij.IJ;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 
-import jclustering.Voxel;
+import jclustering.TACMatrix;
+import jclustering.Utils;
+import jclustering.VoxelCursor;
 
-import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.stat.correlation.StorelessCovariance;
+import org.apache.commons.math3.util.FastMath;
+
+import static jclustering.MathUtils.dot;
+import static jclustering.MathUtils.squaredDistance;
+import static jclustering.Utils.getThreads;
+import static jclustering.Utils.runInParallel;
 
 /**
- * Implements a Mahalanobis distance. See 
+ * Implements a Mahalanobis distance. See
  * <a href="http://en.wikipedia.org/wiki/Mahalanobis_distance">the
  * Mahalanobis distance</a> page on Wikipedia for more information.
- * 
+ * <p>
+ * The covariance matrix is factorized as {@code L * L'} (Cholesky) during
+ * {@link #init()}. Multiplying a TAC by {@code L^-1} (<em>whitening</em>
+ * it) turns the Mahalanobis distance into an Euclidean distance between
+ * whitened TACs. Every voxel is whitened once in {@link #init()}, and
+ * centroids are whitened by {@link #prepare(double[][])}, so that each
+ * distance is just an Euclidean kernel. The whitened voxels are stored in
+ * the same way as the TAC matrix (see 
+ * {@link jclustering.ImagePlusHyp#newDerivedMatrix()}).
+ * <p>
+ * If the covariance matrix is singular or nearly so, a small multiple of
+ * the identity matrix is added to it until it can be factorized.
+ * <p>
+ * The covariance matrix is accumulated in parallel (see
+ * {@link Utils#runInParallel(Runnable[])}), reading the TACs from the
+ * {@link TACMatrix} if it has been built. Each thread needs its own 
+ * instance (see {@link #copy()}), as TACs are whitened into scratch 
+ * arrays.
+ *
  * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
  *
  */
 public class Mahalanobis extends ClusteringMetric {
-    
-    private RealMatrix invcov = null;
-    
+
+    // Pivots smaller than this (relative to the biggest variance) are
+    // considered zero, and the matrix singular.
+    private static final double SINGULAR_TOLERANCE = 1e-12;
+
+    // Maximum number of attempts to regularize the covariance matrix
+    private static final int MAX_REGULARIZATION = 10;
+
+    // Lower triangular Cholesky factor of the covariance matrix
+    private double [][] chol = null;
+
+    // Whitened TACs of every voxel
+    private TACMatrix whitened = null;
+
+    // Scratch arrays for whitened TACs, not shared between copies
+    private double [] wa = null;
+    private double [] wb = null;
+
     @Override
-    public double distance(double[] centroid, double[] data) {  
-     
+    public double distance(double[] centroid, double[] data) {
+
         // If the arrays are the same, the distance is 0.0
         if (Arrays.equals(centroid, data)) {
             return 0.0;
         }
-        
-        // Create a new array with the difference between the two arrays
-        double [] diff = new double[centroid.length];
-        
-        for (int i = 0; i < centroid.length; i++) {
-            diff[i] = centroid[i] - data[i];
-        }       
-        
-        // Left-hand side of the equation: vector * invcov^-1
-        double [] left = invcov.preMultiply(diff);
-        
-        // Compute the dot product of both vectors
-        double res = 0.0;
-        for (int i = 0; i < diff.length; i++) {
-            res += left[i] * diff[i];
+
+        int t = data.length;
+        _scratch(t);
+
+        return FastMath.sqrt(squaredDistance(_whiten(centroid, wa), 
+                                             _whiten(data, wb), t));
+
+    }
+
+    @Override
+    public double[][] prepare(double[][] centroids) {
+
+        double [][] res = new double[centroids.length][];
+        for (int j = 0; j < centroids.length; j++)
+            res[j] = _whiten(centroids[j], new double[centroids[j].length]);
+
+        return res;
+
+    }
+
+    @Override
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+
+        comparisonDistances(row, data, prepared, dest);
+        for (int j = 0; j < prepared.length; j++)
+            dest[j] = FastMath.sqrt(dest[j]);
+
+    }
+
+    /*
+     * Squared distances between whitened TACs.
+     */
+    @Override
+    public void comparisonDistances(int row, double[] data,
+                                    double[][] prepared, double[] dest) {
+
+        int t = data.length;
+        double [] w;
+        int offset;
+
+        if (row >= 0 && (w = whitened.getChunk(row)) != null) {
+            offset = whitened.getChunkOffset(row);
+        } else {
+            w = _whitened(row, data);
+            offset = 0;
         }
-        
-        return Math.sqrt(res);
-        
+
+        for (int j = 0; j < prepared.length; j++)
+            dest[j] = squaredDistance(w, offset, prepared[j], t);
+
+    }
+
+    @Override
+    public double boundedDistance(int row, double[] data, double[] prepared,
+                                  double bound) {
+
+        int t = data.length;
+        double [] w;
+        if (row >= 0 && (w = whitened.getChunk(row)) != null)
+            return squaredDistance(w, whitened.getChunkOffset(row), 
+                                   prepared, t, bound);
+        else
+            return squaredDistance(_whitened(row, data), 0, prepared, t, 
+                                   bound);
+
+    }
+
+    @Override
+    public double toDistance(double comparison) {
+        return FastMath.sqrt(comparison);
+    }
+
+    /*
+     * Shares the Cholesky factor and the whitened TACs, but not the
+     * scratch arrays.
+     */
+    @Override
+    public ClusteringMetric copy() {
+
+        Mahalanobis m = new Mahalanobis();
+        m.ip = ip;
+        m.jp = jp;
+        m.chol = chol;
+        m.whitened = whitened;
+        return m;
+
     }
-    
+
+    /*
+     * An Euclidean distance between whitened TACs.
+     */
+    @Override
+    public EnumSet<Capability> getCapabilities() {
+        return EnumSet.of(Capability.METRIC, Capability.EUCLIDEAN,
+                          Capability.BATCH,
+                          Capability.BOUNDED, Capability.EXPENSIVE_INIT);
+    }
+
     /*
-     * Initializes the covariance matrix
+     * For voxels of the image. Other TACs must be whitened first, which
+     * takes O(T^2) operations.
+     */
+    @Override
+    public Cost getCost() {
+        return Cost.LOW;
+    }
+
+    /*
+     * Initializes the covariance matrix, its Cholesky factor and the
+     * whitened TACs. Both passes through the image run in parallel, over
+     * contiguous ranges of rows.
      */
     public void init() {
-        
+
         IJ.showStatus("Mahalanobis metric initializing...");
-        
-        int dim[] = ip.getDimensions();
-        StorelessCovariance sc = new StorelessCovariance(dim[4]);
-        
-        // Feed the StorelessCovariance
-        for (Voxel v : ip) 
-            sc.increment(v.tac);
-        
-        // Set the covariance value
-        RealMatrix temp = sc.getCovarianceMatrix();
-        
-        // But this matrix is always used inverted. Do it now.
-        invcov = new LUDecomposition(temp).getSolver().getInverse();
+
+        final int t = ip.getDimensions()[4];
+        final int n = ip.getVoxelCount();
+
+        // Read the TACs straight from the TAC matrix, if there is one
+        final TACMatrix m = ip.getTACMatrix();
+
+        // Virtual stacks cannot load their planes from several threads
+        final int parts = m == null && ip.isVirtual() ? 1 : 
+                          Math.max(1, Math.min(getThreads(), n));
+
+        // Each task accumulates the covariance of its own range of rows
+        final Moments [] partial = new Moments[parts];
+        Runnable [] tasks = new Runnable[parts];
+        for (int i = 0; i < parts; i++) {
+            final int p = i;
+            final int from = (int) ((long) n * i / parts);
+            final int to = (int) ((long) n * (i + 1) / parts);
+            tasks[i] = new Runnable() {
+                public void run() {
+                    Moments mo = new Moments(t);
+                    if (m != null) {
+                        double [] buf = new double[t];
+                        for (int row = from; row < to; row++) {
+                            double [] c = m.getChunk(row);
+                            if (c != null) 
+                                mo.increment(c, m.getChunkOffset(row));
+                            else 
+                                mo.increment(m.getTAC(row, buf), 0);
+                        }
+                    } else {
+                        VoxelCursor v = ip.cursor(from, to);
+                        while (v.next())
+                            mo.increment(v.tac, 0);
+                    }
+                    partial[p] = mo;
+                }
+            };
+        }
+        runInParallel(tasks);
+
+        // Merge the partial results always in the same order
+        for (int i = 1; i < parts; i++)
+            partial[0].merge(partial[i]);
+
+        chol = _factorize(partial[0].getCovariance());
+
+        // Whiten every voxel once
+        IJ.showStatus("Mahalanobis metric: whitening TACs...");
+        if (whitened != null) whitened.close();
+        final TACMatrix w = ip.newDerivedMatrix();
+        for (int i = 0; i < parts; i++) {
+            final int from = (int) ((long) n * i / parts);
+            final int to = (int) ((long) n * (i + 1) / parts);
+            tasks[i] = new Runnable() {
+                public void run() {
+                    double [] buf = new double[t];
+                    double [] res = new double[t];
+                    if (m != null) {
+                        for (int row = from; row < to; row++) {
+                            double [] c = m.getChunk(row);
+                            if (c != null)
+                                _whiten(c, m.getChunkOffset(row), res, 0, t);
+                            else
+                                _whiten(m.getTAC(row, buf), res);
+                            w.setTACs(row, row + 1, res);
+                        }
+                    } else {
+                        VoxelCursor v = ip.cursor(from, to);
+                        while (v.next()) {
+                            int row = v.getRow();
+                            w.setTACs(row, row + 1, _whiten(v.tac, res));
+                        }
+                    }
+                }
+            };
+        }
+        runInParallel(tasks);
+        whitened = w;
+
+    }
+
+    /*
+     * Computes the Cholesky factor of the covariance matrix. If it is not
+     * positive definite, it is regularized by adding a multiple of the
+     * identity matrix, which is increased until the factorization works.
+     */
+    private double [][] _factorize(double [][] cov) {
+
+        int n = cov.length;
+
+        double max = 0.0;
+        for (int i = 0; i < n; i++)
+            max = Math.max(max, cov[i][i]);
+
+        double [][] l = _cholesky(cov, 0.0, max);
+        if (l != null) return l;
+
+        // Start with a ridge relative to the biggest variance
+        double ridge = (max > 0.0 ? max : 1.0) * 1e-10;
+        for (int i = 0; i < MAX_REGULARIZATION && l == null; i++) {
+            l = _cholesky(cov, ridge, max + ridge);
+            if (l == null) ridge *= 10;
+        }
+
+        if (l != null) {
+            IJ.log(String.format("Mahalanobis: singular covariance matrix, " +
+                                 "regularized with %g.", ridge));
+            return l;
+        }
+
+        // Nothing else to do: the distance becomes an Euclidean distance
+        IJ.log("Mahalanobis: covariance matrix cannot be factorized, " +
+               "using the identity matrix.");
+        l = new double[n][n];
+        for (int i = 0; i < n; i++)
+            l[i][i] = 1.0;
+        return l;
+
+    }
+
+    /*
+     * Cholesky factorization of cov + ridge * I. Returns null if the matrix
+     * is not (numerically) positive definite.
+     */
+    private double [][] _cholesky(double [][] cov, double ridge,
+                                  double max) {
+
+        int n = cov.length;
+        double tolerance = max * SINGULAR_TOLERANCE;
+        double [][] l = new double[n][];
+
+        for (int i = 0; i < n; i++) {
+            l[i] = new double[i + 1];
+            for (int j = 0; j < i; j++) {
+                l[i][j] = (cov[i][j] - dot(l[i], l[j], j)) / l[j][j];
+            }
+            double pivot = cov[i][i] + ridge - dot(l[i], l[i], i);
+            // Also catches NaN values
+            if (!(pivot > tolerance)) return null;
+            l[i][i] = FastMath.sqrt(pivot);
+        }
+
+        return l;
+
+    }
+
+    /*
+     * Returns the whitened TAC of the given row (if the whitened TACs are
+     * not kept in a double precision heap array), or whitens the given TAC
+     * (for rows < 0). The result is stored in a scratch array.
+     */
+    private double [] _whitened(int row, double [] data) {
+
+        _scratch(data.length);
+        if (row >= 0)
+            return whitened.getTAC(row, wa);
+        else
+            return _whiten(data, wa);
+
+    }
+
+    /*
+     * Allocates the scratch arrays, if needed.
+     */
+    private void _scratch(int t) {
+
+        if (wa == null || wa.length != t) {
+            wa = new double[t];
+            wb = new double[t];
+        }
+
+    }
+
+    /*
+     * Solves L * dest = tac by forward substitution (dest = L^-1 * tac).
+     */
+    private double [] _whiten(double [] tac, double [] dest) {
+        return _whiten(tac, 0, dest, 0, tac.length);
+    }
+
+    /*
+     * Same as above, but the TAC is read from position tpos of tac and the
+     * result is written from position dpos of dest.
+     */
+    private double [] _whiten(double [] tac, int tpos, double [] dest,
+                              int dpos, int t) {
+
+        for (int i = 0; i < t; i++) {
+            double [] li = chol[i];
+            dest[dpos + i] = (tac[tpos + i] - dot(dest, dpos, li, i)) / li[i];
+        }
+
+        return dest;
+
+    }
+
+    /*
+     * Running mean and co-moment matrix (sum of the products of the
+     * deviations from the mean) of a set of TACs. Values are updated one
+     * TAC at a time (Welford), and the results for two sets can be merged
+     * (Chan et al.), so that each thread can work on its own range of
+     * voxels. Only the upper triangle of the co-moment matrix is stored,
+     * row by row.
+     */
+    private static class Moments {
+
+        private final int t;
+        private final double [] mean;
+        private final double [] comoment;
+        private final double [] delta;
+        private long n = 0;
+
+        Moments(int t) {
+            this.t = t;
+            this.mean = new double[t];
+            this.comoment = new double[t * (t + 1) / 2];
+            this.delta = new double[t];
+        }
+
+        /*
+         * Adds the TAC that starts at position pos of the given array.
+         */
+        void increment(double [] tac, int pos) {
+
+            n++;
+            for (int i = 0; i < t; i++) {
+                delta[i] = tac[pos + i] - mean[i];
+                mean[i] += delta[i] / n;
+            }
+
+            double f = (n - 1) / (double) n;
+            int k = 0;
+            for (int i = 0; i < t; i++) {
+                double a = delta[i] * f;
+                for (int j = i; j < t; j++)
+                    comoment[k++] += a * delta[j];
+            }
+
+        }
+
+        /*
+         * Adds all the TACs accumulated by another object.
+         */
+        void merge(Moments o) {
+
+            if (o.n == 0) return;
+            if (n == 0) {
+                n = o.n;
+                System.arraycopy(o.mean, 0, mean, 0, t);
+                System.arraycopy(o.comoment, 0, comoment, 0, comoment.length);
+                return;
+            }
+
+            long total = n + o.n;
+            for (int i = 0; i < t; i++)
+                delta[i] = o.mean[i] - mean[i];
+
+            double f = (double) n * o.n / total;
+            int k = 0;
+            for (int i = 0; i < t; i++) {
+                double a = delta[i] * f;
+                for (int j = i; j < t; j++, k++)
+                    comoment[k] += o.comoment[k] + a * delta[j];
+            }
+
+            for (int i = 0; i < t; i++)
+                mean[i] += delta[i] * o.n / total;
+            n = total;
+
+        }
+
+        /*
+         * Returns the bias-corrected covariance matrix (zero if there are
+         * less than two TACs).
+         */
+        double [][] getCovariance() {
+
+            double [][] cov = new double[t][t];
+            double d = n > 1 ? n - 1 : 1;
+            int k = 0;
+            for (int i = 0; i < t; i++) {
+                for (int j = i; j < t; j++) {
+                    cov[i][j] = cov[j][i] = comoment[k++] / d;
+                }
+            }
+
+            return cov;
+
+        }
 
     }
 
@@ -4,12 +4,15 @@ import java.awt.Label;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.util.Arrays;
+import java.util.EnumSet;
 
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 
 import org.apache.commons.math3.util.FastMath;
 
+import static jclustering.MathUtils.squaredDistance;
+
 /**
  * This {@link ClusteringMetric} implements a <a
  * href="http://en.wikipedia.org/wiki/Norm_(mathematics)#p-norm">p-norm</a>
@@ -24,7 +27,9 @@ import org.apache.commons.math3.util.FastMath;
  */
 public class PNorm extends ClusteringMetric implements FocusListener {
 
-    private double p = 2.0;
+    // Written by the configuration panel. Distance methods read it only
+    // once, so that each call sees a single value.
+    private volatile double p = 2.0;
     private JTextField jt;
 
     @Override
@@ -34,6 +39,8 @@ public class PNorm extends ClusteringMetric implements FocusListener {
      */
     public double distance(double[] centroid, double[] data) {
 
+        double p = this.p;
+
         if (Arrays.equals(centroid, data) || centroid.length != data.length)
             return 0.0;
 
@@ -43,10 +50,7 @@ public class PNorm extends ClusteringMetric implements FocusListener {
             // Use faster code here. Most times this will be the selected
             // value (p = 2), so it makes sense not to use FastMah.pow
             // here when a simple multiplication will do.
-            for (int i = 0; i < data.length; i++) {
-                double d = centroid[i] - data[i];
-                result += d * d;                
-            }
+            result = squaredDistance(centroid, data, data.length);
             return FastMath.sqrt(result);            
         }
 
@@ -58,6 +62,134 @@ public class PNorm extends ClusteringMetric implements FocusListener {
         }
     }
 
+    @Override
+    /**
+     * Computes the p-norm between {@code data} and every centroid. The
+     * choice between the Euclidean and the general code is done only once.
+     */
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+
+        double p = this.p;
+
+        boolean euclidean = Double.compare(2.0, p) == 0;
+
+        for (int j = 0; j < prepared.length; j++) {
+            double[] centroid = prepared[j];
+            if (Arrays.equals(centroid, data) || 
+                centroid.length != data.length) {
+                dest[j] = 0.0;
+                continue;
+            }
+            double result = 0.0;
+            if (euclidean) {
+                result = squaredDistance(centroid, data, data.length);
+                dest[j] = FastMath.sqrt(result);
+            } else {
+                for (int i = 0; i < data.length; i++) {
+                    result += FastMath.pow(Math.abs(centroid[i] - data[i]), 
+                                           p);
+                }
+                dest[j] = FastMath.pow(result, 1.0 / p);
+            }
+        }
+
+    }
+
+    @Override
+    /**
+     * Same as {@link #distances(int, double[], double[][], double[])}, but
+     * without the final {@code 1/p} power (the square root for an
+     * Euclidean distance).
+     */
+    public void comparisonDistances(int row, double[] data, 
+                                    double[][] prepared, double[] dest) {
+
+        double p = this.p;
+
+        boolean euclidean = Double.compare(2.0, p) == 0;
+
+        for (int j = 0; j < prepared.length; j++) {
+            double[] centroid = prepared[j];
+            if (Arrays.equals(centroid, data) || 
+                centroid.length != data.length) {
+                dest[j] = 0.0;
+                continue;
+            }
+            if (euclidean) {
+                dest[j] = squaredDistance(centroid, data, data.length);
+            } else {
+                double result = 0.0;
+                for (int i = 0; i < data.length; i++) {
+                    result += FastMath.pow(Math.abs(centroid[i] - data[i]), 
+                                           p);
+                }
+                dest[j] = result;
+            }
+        }
+
+    }
+
+    @Override
+    /**
+     * Same as {@link #comparisonDistances}, for a single centroid, but
+     * stops adding frames as soon as the sum is bigger than {@code bound}.
+     */
+    public double boundedDistance(int row, double[] data, double[] prepared,
+                                  double bound) {
+
+        double p = this.p;
+
+        if (Arrays.equals(prepared, data) || prepared.length != data.length)
+            return 0.0;
+
+        if (Double.compare(2.0, p) == 0)
+            return squaredDistance(data, 0, prepared, data.length, bound);
+
+        double result = 0.0;
+        for (int i = 0; i < data.length; i++) {
+            result += FastMath.pow(Math.abs(prepared[i] - data[i]), p);
+            if (result > bound) return result;
+        }
+        return result;
+
+    }
+
+    @Override
+    public double toDistance(double comparison) {
+
+        double p = this.p;
+
+        if (Double.compare(2.0, p) == 0)
+            return FastMath.sqrt(comparison);
+        else
+            return FastMath.pow(comparison, 1.0 / p);
+
+    }
+
+    @Override
+    /**
+     * A p-norm is a metric for {@code p >= 1}, and an Euclidean distance
+     * for {@code p = 2}. Only the Euclidean case avoids 
+     * {@code FastMath.pow()}.
+     */
+    public EnumSet<Capability> getCapabilities() {
+
+        double p = this.p;
+        EnumSet<Capability> c = EnumSet.of(Capability.THREAD_SAFE, 
+                                           Capability.BATCH,
+                                           Capability.BOUNDED);
+        if (p >= 1.0) c.add(Capability.METRIC);
+        if (Double.compare(2.0, p) == 0) c.add(Capability.EUCLIDEAN);
+        return c;
+
+    }
+
+    @Override
+    public Cost getCost() {
+        return Double.compare(2.0, p) == 0 ? Cost.LOW : Cost.HIGH;
+    }
+
     @Override
     /**
      * Build a JTextField to introduce the new value for p.
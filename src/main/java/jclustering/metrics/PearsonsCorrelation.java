@@ -1,40 +1,91 @@
 package jclustering.metrics;
 
 import java.util.Arrays;
+import java.util.EnumSet;
+
+import jclustering.TACMatrix;
+import jclustering.VoxelFeatures;
+import static jclustering.VoxelFeatures.normalize;
 
 /**
  * Pearsons correlation score between two given TACs (data type
  * {@code double[]}).
- * 
+ * <p>
+ * Both TACs are centered and scaled to unit norm (see
+ * {@link VoxelFeatures#normalize(double[], double[])}), so that the
+ * correlation is just their dot product. Voxels are normalized only once
+ * per run, as they are taken from {@link VoxelFeatures}, and centroids are
+ * normalized by {@link #prepare(double[][])}.
+ *
  * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
  */
 public class PearsonsCorrelation extends ClusteringMetric {
 
-    private org.apache.commons.math3.stat.correlation.PearsonsCorrelation pc;
-
     @Override
     public double distance(double[] centroid, double[] data) {
 
-        double corr;
-
         if (Arrays.equals(centroid, data)) {
             // Same contents, do not even try to compute the correlation score
-            corr = 0.0;
+            return 0.0;
+        }
+
+        int t = data.length;
+        return correlationDistance(normalize(data, new double[t]), 0,
+                                   normalize(centroid, new double[t]), t);
+
+    }
+
+    @Override
+    public double[][] prepare(double[][] centroids) {
+
+        double[][] res = new double[centroids.length][];
+        for (int j = 0; j < centroids.length; j++)
+            res[j] = normalize(centroids[j], new double[centroids[j].length]);
+
+        return res;
+
+    }
+
+    @Override
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+
+        int t = data.length;
+        double[] z;
+        int offset;
+        
+        if (row >= 0) {
+            // Read straight from the cache, without copying, unless it is
+            // stored in single precision or in a file
+            TACMatrix m = ip.getFeatures().getNormalizedMatrix();
+            z = m.getChunk(row);
+            if (z != null) {
+                offset = m.getChunkOffset(row);
+            } else {
+                z = m.getTAC(row, new double[t]);
+                offset = 0;
+            }
         } else {
-            // Turn a correlation score into a distance
-            corr = 1.0 - pc.correlation(centroid, data);
+            z = normalize(data, new double[t]);
+            offset = 0;
         }
 
-        if (!Double.isNaN(corr))
-            return corr;
-        else
-            return Double.MAX_VALUE;
+        for (int j = 0; j < prepared.length; j++)
+            dest[j] = correlationDistance(z, offset, prepared[j], t);
 
     }
-    
+
+    /*
+     * 1 - r is not a metric (it does not satisfy the triangle inequality).
+     */
+    @Override
+    public EnumSet<Capability> getCapabilities() {
+        return EnumSet.of(Capability.THREAD_SAFE, Capability.BATCH);
+    }
+
     @Override
-    public void init() {
-        pc = new org.apache.commons.math3.stat.correlation.PearsonsCorrelation();
+    public Cost getCost() {
+        return Cost.LOW;
     }
 
 }
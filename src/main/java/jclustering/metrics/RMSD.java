@@ -1,11 +1,22 @@
 package jclustering.metrics;
 
 import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.apache.commons.math3.util.FastMath;
+
 import static jclustering.MathUtils.rmsd;
+import static jclustering.MathUtils.squaredDistance;
 
 /**
  * Root-mean-square deviation between two given TACs (data type
  * {@code double[]}).
+ * <p>
+ * For comparisons, the sum of squared differences is used, and it is only
+ * divided by the number of frames and rooted by
+ * {@link #toDistance(double)}. The batch methods use the same kernel, with
+ * the final scaling done once per centroid, and the block method reads
+ * the TACs straight from the block.
  * 
  * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
  */
@@ -31,4 +42,105 @@ public class RMSD extends ClusteringMetric {
 
     }
 
+    @Override
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+
+        comparisonDistances(row, data, prepared, dest);
+        int t = data.length;
+        for (int j = 0; j < prepared.length; j++)
+            dest[j] = _scale(dest[j], t);
+
+    }
+
+    @Override
+    public void distances(int from, int to, double[] block, 
+                          double[][] prepared, double[] dest) {
+
+        int k = prepared.length;
+        int t = ip.getDimensions()[4];
+
+        for (int r = from, offset = 0, d = 0; r < to; r++, offset += t) {
+            for (int j = 0; j < k; j++, d++) {
+                double sq = squaredDistance(block, offset, prepared[j], t);
+                // Arrays.equals() sees NaN values as equal
+                if (Double.isNaN(sq) && _equals(block, offset, prepared[j]))
+                    sq = 0.0;
+                dest[d] = _scale(!Double.isNaN(sq) ? sq : Double.MAX_VALUE,
+                                 t);
+            }
+        }
+
+    }
+
+    @Override
+    public void comparisonDistances(int row, double[] data,
+                                    double[][] prepared, double[] dest) {
+
+        for (int j = 0; j < prepared.length; j++) {
+            double[] centroid = prepared[j];
+            double sq = Arrays.equals(centroid, data) ? 0.0 :
+                        squaredDistance(centroid, data, data.length);
+            dest[j] = !Double.isNaN(sq) ? sq : Double.MAX_VALUE;
+        }
+
+    }
+
+    @Override
+    public double boundedDistance(int row, double[] data, double[] prepared,
+                                  double bound) {
+
+        double sq = Arrays.equals(prepared, data) ? 0.0 :
+                    squaredDistance(data, 0, prepared, data.length, bound);
+        return !Double.isNaN(sq) ? sq : Double.MAX_VALUE;
+
+    }
+
+    @Override
+    public double toDistance(double comparison) {
+
+        return _scale(comparison, ip.getDimensions()[4]);
+
+    }
+
+    /*
+     * Turns a sum of t squared differences into the RMSD.
+     */
+    private static double _scale(double comparison, int t) {
+
+        if (comparison == Double.MAX_VALUE) return comparison;
+        return FastMath.sqrt(comparison / t);
+
+    }
+
+    /*
+     * Same as Arrays.equals() for the TAC that starts at position offset
+     * of block.
+     */
+    private static boolean _equals(double[] block, int offset, 
+                                   double[] centroid) {
+
+        for (int i = 0; i < centroid.length; i++)
+            if (Double.doubleToLongBits(block[offset + i]) != 
+                Double.doubleToLongBits(centroid[i])) return false;
+        return true;
+
+    }
+
+    /*
+     * The RMSD is the Euclidean distance divided by the square root of the
+     * number of frames.
+     */
+    @Override
+    public EnumSet<Capability> getCapabilities() {
+        return EnumSet.of(Capability.METRIC, Capability.EUCLIDEAN,
+                          Capability.THREAD_SAFE, Capability.BATCH,
+                          Capability.BOUNDED);
+    }
+
+    @Override
+    public Cost getCost() {
+        return Cost.LOW;
+    }
+
 }
@@ -1,41 +1,101 @@
 package jclustering.metrics;
 
 import java.util.Arrays;
+import java.util.EnumSet;
+
+import jclustering.TACMatrix;
+import jclustering.VoxelFeatures;
+import static jclustering.VoxelFeatures.normalize;
+import static jclustering.VoxelFeatures.rank;
 
 /**
  * Spearmans correlation score between two given TACs (data type
  * {@code double[]}).
+ * <p>
+ * This is the Pearson's correlation between the ranks of both TACs. Ranks 
+ * are centered and scaled to unit norm, so that the correlation is just 
+ * their dot product. Voxels are ranked only once per run, as they are
+ * taken from {@link VoxelFeatures}, and centroids are ranked by 
+ * {@link #prepare(double[][])}.
  * 
  * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
  */
 public class SpearmansCorrelation extends ClusteringMetric {
 
-    private org.apache.commons.math3.stat.correlation.SpearmansCorrelation sc;
-
     @Override
     public double distance(double[] centroid, double[] data) {
 
-        double corr;
-
         if (Arrays.equals(centroid, data)) {
             // Same contents, do not even try to compute the correlation score
-            corr = 0.0;
+            return 0.0;
+        }
+
+        int t = data.length;
+        return correlationDistance(_rank(data), 0, _rank(centroid), t);
+
+    }
+
+    @Override
+    public double[][] prepare(double[][] centroids) {
+
+        double[][] res = new double[centroids.length][];
+        for (int j = 0; j < centroids.length; j++)
+            res[j] = _rank(centroids[j]);
+
+        return res;
+
+    }
+
+    @Override
+    public void distances(int row, double[] data, double[][] prepared,
+                          double[] dest) {
+
+        int t = data.length;
+        double[] z;
+        int offset;
+        
+        if (row >= 0) {
+            // Read straight from the cache, without copying, unless it is
+            // stored in single precision or in a file
+            TACMatrix m = ip.getFeatures().getNormalizedRankMatrix();
+            z = m.getChunk(row);
+            if (z != null) {
+                offset = m.getChunkOffset(row);
+            } else {
+                z = m.getTAC(row, new double[t]);
+                offset = 0;
+            }
         } else {
-            // Turn a correlation score into a distance
-            corr = 1.0 - sc.correlation(centroid, data);
+            z = _rank(data);
+            offset = 0;
         }
 
-        if (!Double.isNaN(corr))
-            return corr;
-        else
-            return Double.MAX_VALUE;
+        for (int j = 0; j < prepared.length; j++)
+            dest[j] = correlationDistance(z, offset, prepared[j], t);
 
     }
     
+    /*
+     * Returns the normalized ranks of the given TAC.
+     */
+    private static double[] _rank(double[] tac) {
+        
+        double[] res = rank(tac, new double[tac.length]);
+        return normalize(res, res);
+        
+    }
+
+    /*
+     * 1 - r is not a metric (it does not satisfy the triangle inequality).
+     */
+    @Override
+    public EnumSet<Capability> getCapabilities() {
+        return EnumSet.of(Capability.THREAD_SAFE, Capability.BATCH);
+    }
+
     @Override
-    public void init() {
-        sc = new 
-             org.apache.commons.math3.stat.correlation.SpearmansCorrelation();
+    public Cost getCost() {
+        return Cost.LOW;
     }
 
 }
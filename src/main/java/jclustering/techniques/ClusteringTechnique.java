@@ -141,6 +141,28 @@ public abstract class ClusteringTechnique implements ItemListener {
 
     }
 
+    /**
+     * Returns one instance of the metric for each thread of a parallel
+     * computation (see {@link ClusteringMetric#copy()}). The first one is
+     * always the metric of this technique.
+     * 
+     * @param threads The number of threads.
+     * @return The metrics. If the metric cannot be copied, the array has
+     *         only one element, and the work must be done on one thread.
+     */
+    protected ClusteringMetric[] getThreadMetrics(int threads) {
+
+        ClusteringMetric[] res = new ClusteringMetric[Math.max(1, threads)];
+        res[0] = metric;
+        for (int i = 1; i < res.length; i++) {
+            res[i] = metric.copy();
+            if (res[i] == null) return new ClusteringMetric[] {metric};
+        }
+
+        return res;
+
+    }
+
     /**
      * @return The clusters formed in this clustering technique. This method
      *         should be called after {@link #process()}, which must populate
@@ -19,7 +19,8 @@ import org.fastica.FastICAException;
 
 import ij.IJ;
 import ij.ImagePlus;
-import jclustering.Voxel;
+import jclustering.TACMatrix;
+import jclustering.VoxelCursor;
 import static jclustering.GUIUtils.createJTextField;
 import static jclustering.Utils.RealMatrix2IJ;
 import static jclustering.MathUtils.getMaxIndex;
@@ -52,18 +53,22 @@ public class ICA extends ClusteringTechnique implements FocusListener {
         
         IJ.showStatus("ICA: reformatting data matrix...");
 
-        // Compute number of real voxels to be used
-        int n = 0;        
-        for (@SuppressWarnings("unused") Voxel v : ip) {            
-            n++;
-        }        
+        // Number of real voxels to be used (masked voxels are skipped)
+        int n = ip.getVoxelCount();
+
+        // The decomposition needs the whole data matrix in the heap
+        TACMatrix m = ip.getTACMatrix();
+        if (m != null && m.isMapped())
+            IJ.log("ICA: the data matrix is copied to the Java heap, even " +
+                   "with a memory-mapped TAC cache.");
 
         // Create new array and fill it with the image data
         double[][] image_data = new double[n][dimensions];
 
         int i = 0;
-        for (Voxel v : ip) {            
-            image_data[i++] = v.tac;
+        VoxelCursor v = ip.cursor();
+        while (v.next()) {
+            System.arraycopy(v.tac, 0, image_data[i++], 0, dimensions);
         }
         
         // Transpose the data matrix
@@ -114,13 +119,14 @@ public class ICA extends ClusteringTechnique implements FocusListener {
         // in all voxels, but for segmentation purposes this approach is
         // chosen.
         int column_index = 0;
-        for (Voxel v : ip) {
+        v = ip.cursor();
+        while (v.next()) {
             
             double [] projection = result.getColumn(column_index++);   
             
             // Every Voxel belongs to the maximum index of its projected TAC
             int max = getMaxIndex(projection) + 1;
-            addTACtoCluster(v, max);            
+            addTACtoCluster(v.tac, v.x, v.y, v.slice, max);
         }   
         
         // Fill in the additionalInfo array.
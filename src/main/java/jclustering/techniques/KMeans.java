@@ -1,11 +1,14 @@
 package jclustering.techniques;
 
 import static jclustering.GUIUtils.*;
-import static jclustering.MathUtils.isMasked;
+import static jclustering.Utils.getThreads;
+import static jclustering.Utils.runInParallel;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.awt.Component;
 import java.awt.GridLayout;
@@ -13,15 +16,17 @@ import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.ItemEvent;
 
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 
-import org.apache.commons.math3.stat.StatUtils;
-
 import jclustering.Cluster;
 import jclustering.MathUtils;
-import jclustering.Voxel;
+import jclustering.VoxelCursor;
+import jclustering.VoxelFeatures;
+import jclustering.metrics.ClusteringMetric;
+import jclustering.metrics.ClusteringMetric.Capability;
 
 import ij.IJ;
 
@@ -51,6 +56,55 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
     // Non-random initialization
     private String init = "";
 
+    // Assignment step: "Automatic", "Standard", "Elkan" or "Hamerly"
+    private final String DEF_ASSIGNMENT = "Automatic";
+    private String assignment = DEF_ASSIGNMENT;
+
+    // Voxels per mini-batch (0 = full passes over all the voxels)
+    private final int DEF_BATCH_SIZE = 0;
+    private int batch_size = DEF_BATCH_SIZE;
+
+    // Mini-batch mode stops after this many batches without improvement
+    // of the held-out error
+    private static final int PATIENCE = 10;
+
+    // At most one voxel out of HOLDOUT_FRACTION is held out
+    private static final int HOLDOUT_FRACTION = 5;
+
+    // Random voxels tried for an initial point before giving up
+    private static final int MAX_RANDOM_ATTEMPTS = 1000;
+
+    // k-means|| initialization: rounds, and voxels sampled per round 
+    // (times the number of clusters)
+    private static final int INIT_ROUNDS = 5;
+    private static final double OVERSAMPLING = 2.0;
+
+    // Rows per chunk in the assignment step. The voxels are always split
+    // in the same chunks, whatever the number of threads.
+    private static final int CHUNK_ROWS = 4096;
+
+    // Relative slack for the bounds of accelerated assignments
+    private static final double BOUND_SLACK = 1e-10;
+    private static final double UP = 1.0 + BOUND_SLACK;
+    private static final double DOWN = 1.0 - BOUND_SLACK;
+
+    // Biggest number of clusters for which the automatic assignment uses
+    // Hamerly's algorithm instead of Elkan's
+    private static final int HAMERLY_MAX_K = 20;
+
+
+    /*
+     * Sets the options that are otherwise read from the configuration 
+     * panel. Package-private for the tests.
+     */
+    void configure(int n_clusters, String initial_centroids, 
+                   String assignment) {
+
+        this.n_clusters = n_clusters;
+        this.initial_centroids = initial_centroids;
+        this.assignment = assignment;
+
+    }
 
     @Override
     public void process() {
@@ -61,7 +115,13 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
         // Initialize points
         int[][] initial_points = new int[n_clusters][3];
         long init_start = System.currentTimeMillis();
-        _fillInitialPoints(initial_points, r);
+        int found = _fillInitialPoints(initial_points, r);
+        if (found < initial_points.length) {
+            IJ.log(String.format("Only %d different initial points could " +
+                                 "be found. Using %d clusters.", found, 
+                                 found));
+            initial_points = Arrays.copyOf(initial_points, found);
+        }
         long init_end = System.currentTimeMillis();
         String init_time = String.format("Initialization time: %3.3f seconds",
                                          ((init_end - init_start)/1000.0));
@@ -96,38 +156,52 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
         IJ.log("If you wish to use same initialization, use values below:");
         IJ.log(init);
 
-        // Init this temporary variable
-        ArrayList<Cluster> it_result = clusters;
-        ArrayList<Cluster> new_it_result = null;
+        // Current centroids. Voxels are only labelled during the
+        // iterations, and the Cluster objects are built at the end.
+        double [][] centroids = new double[clusters.size()][];
+        for (int i = 0; i < centroids.length; i++)
+            centroids[i] = clusters.get(i).getCentroid();
+        double [][] assigned = centroids;
+        double [][] means = null;
+        int [] labels = new int[ip.getVoxelCount()];
+
+        // Mini-batch mode: the centroids are computed from random samples,
+        // and the voxels are only labelled once, at the end.
+        if (batch_size > 0 && batch_size < labels.length) {
+            centroids = _miniBatch(centroids, r);
+            means = _iterate(centroids, labels, new StandardAssignment());
+            clusters = _buildClusters(centroids, means, labels);
+            return;
+        }
+
+        Assignment a = _getAssignment();
 
         // Keep iterations below 100 as a sanity measure
         while (!threshold_reached && it < max_iterations) {
             it++;
             IJ.showStatus("K-Means: Iteration " + it + "/" + max_iterations
-                    + " , clusters: " + it_result.size());
-
-            new_it_result = _iterate(it_result);
-
-            // Set it_result for the next iteration. Also, don't create a new
-            // cluster if it is empty. Variables size1 and size2 keep track
-            // of how many clusters we presently have.
-            int size1 = it_result.size();
-            it_result = new ArrayList<Cluster>(new_it_result.size());
-            for (Cluster c : new_it_result) {
-                // Use the previous TACs as centroids
-                if (!c.isEmpty()) {
-                    it_result.add(new Cluster(c.getClusterTAC()));
-                }
+                    + " , clusters: " + centroids.length);
+
+            means = _iterate(centroids, labels, a);
+            assigned = centroids;
+
+            // Use the mean TACs as the centroids for the next iteration. 
+            // Also, don't keep a cluster if it is empty. Variables size1 
+            // and size2 keep track of how many clusters we presently have.
+            int size1 = centroids.length;
+            ArrayList<double []> next = new ArrayList<double []>(size1);
+            for (double [] m : means) {
+                if (m != null) next.add(m);
             }
-            int size2 = it_result.size();
+            centroids = next.toArray(new double[next.size()][]);
+            int size2 = centroids.length;
             
             // Compute the global SSE and check if the differences are
             // smaller than the threshold limit. If
             if (size1 == size2) {
                 double new_sse = 0.0;
                 for (int i = 0; i < size2; i++) {
-                    new_sse += _sse(it_result.get(i).getCentroid(),
-                                    new_it_result.get(i).getCentroid());
+                    new_sse += _sse(centroids[i], assigned[i]);
                 }
                 
                 double ratio = new_sse / sse;                
@@ -138,18 +212,19 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
 
         }
 
-        IJ.log(it + " iterations needed. " + it_result.size() + " clusters"
+        IJ.log(it + " iterations needed. " + centroids.length + " clusters"
                 + " formed.");
+        a.report();
 
         // Set final clusters
-        clusters = new_it_result;
+        if (means != null) clusters = _buildClusters(assigned, means, labels);
     }
 
     @Override
     public JPanel makeConfig() {
 
         // Add metrics
-        JPanel jp = new JPanel(new GridLayout(5, 2, 5, 5));
+        JPanel jp = new JPanel(new GridLayout(7, 2, 5, 5));
         addMetricsToJPanel(jp);
 
         // Add field for number of clusters to be added
@@ -168,7 +243,9 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
                 + " points are defined, the rest will be randomly chosen as"
                 + " usual.<p>"
                 + "You can also use \"++\" (without the quotes) to use"
-                + " a k-means++ initialization algorithm.</html>";
+                + " a k-means++ initialization algorithm, or \"||\" for"
+                + " k-means||, a parallel version that is much faster for"
+                + " many clusters.</html>";
         jp.add(createJLabel("Non-random initalization*:", non_random_help));
         JTextField jt_init = new JTextField(init);
         jt_init.setName("jt_init");
@@ -187,6 +264,40 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
                                    max_iterations, this);        
         jp.add(jt_iterations);
 
+        // Assignment step
+        String assignment_help = "<html>Standard: compute the distance to"
+                + " every centroid.<p>"
+                + "Elkan: skip distances using the triangle inequality and"
+                + " per-voxel bounds. Same result, much faster for many"
+                + " clusters and iterations, but it needs k + 1 values per"
+                + " voxel.<p>"
+                + "Hamerly: same idea with only 2 values per voxel. Usually"
+                + " the fastest for up to 20 clusters.<p>"
+                + "Automatic: Hamerly for up to 20 clusters, Elkan"
+                + " otherwise.<p>"
+                + "Elkan and Hamerly only work with metrics that are true"
+                + " distances (PNorm with p &gt;= 1, RMSD, Mahalanobis);"
+                + " other metrics use the standard assignment.</html>";
+        jp.add(createJLabel("Assignment:*", assignment_help));
+        JComboBox jcb_assignment = createChoices("jcb_assignment",
+                new String[] {"Automatic", "Standard", "Elkan", "Hamerly"},
+                this);
+        jcb_assignment.setSelectedItem(assignment);
+        jp.add(jcb_assignment);
+
+        // Mini-batch mode
+        String batch_help = "<html>If bigger than 0, the centroids are"
+                + " computed from random batches of this number of voxels"
+                + " (mini-batch k-means) instead of all of them, and every"
+                + " voxel is assigned only once, at the end. Much faster for"
+                + " very large studies, with slightly worse clusters.<p>"
+                + "Each iteration is a batch. Iterations stop when the error"
+                + " of a held-out sample of voxels has not improved more than"
+                + " the change threshold for " + PATIENCE + " batches.</html>";
+        jp.add(createJLabel("Mini-batch size:*", batch_help));
+        JTextField jt_batch = createJTextField("jt_batch", batch_size, this);
+        jp.add(jt_batch);
+
         return jp;
 
     }
@@ -194,6 +305,12 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
     @Override
     public void itemStateChanged(ItemEvent arg0) {
 
+        Component c = (Component) arg0.getSource();
+        if ("jcb_assignment".equals(c.getName())) {
+            assignment = (String) ((JComboBox) c).getSelectedItem();
+            return;
+        }
+
         // Handle the metric JComboBox. Call the superclass method.
         super.itemStateChanged(arg0);
 
@@ -206,7 +323,8 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
         String s = c.getName();
 
         if (s.equals("jt_clusters") || s.equals("jt_init") 
-                || s.equals("jt_end") || s.equals("jt_iterations")) {
+                || s.equals("jt_end") || s.equals("jt_iterations")
+                || s.equals("jt_batch")) {
             ((JTextField) c).selectAll();
         }
 
@@ -245,6 +363,15 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
                 jtf.setText(Integer.toString(max_iterations));
             }
 
+        } else if (source.equals("jt_batch")) {
+            JTextField jtf = (JTextField) c;
+            try {
+                batch_size = Integer.parseInt(jtf.getText());
+            } catch (NumberFormatException e) {
+                batch_size = DEF_BATCH_SIZE;
+                jtf.setText(Integer.toString(batch_size));
+            }
+
         }
 
     }
@@ -254,29 +381,36 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
      * {@code initial_centroids} String.
      * 
      * @param initial_points Array to be filled
+     * @return The number of points filled. The k-means++ initializations
+     *         may find less points than clusters, if there are not enough
+     *         different TACs.
      */
-    private void _fillInitialPoints(int[][] initial_points, Random r) {
+    private int _fillInitialPoints(int[][] initial_points, Random r) {
 
         if (initial_centroids == null || initial_centroids.equals("")
                 || _notValidInitialPoints()) {
             IJ.log("Random initialization");
             _fillRandomPoints(initial_points, 0, r);
-            return;
+            return initial_points.length;
         }
         
         // K-means++ uses its own initialization method.
         if (initial_centroids.equals("++")) { 
             IJ.log("K-means++ initialization");
-            _fillKMeansPlusPlus(initial_points, r);
-            return;
+            return _fillKMeansPlusPlus(initial_points, r);
+        }
+
+        // Scalable K-means++ (k-means||)
+        if (initial_centroids.equals("||")) {
+            IJ.log("K-means|| initialization");
+            return _fillKMeansParallel(initial_points, r);
         }
         
         // Deterministic K-means++. Allow the user to provide an initial
         // point (in the form of "det++;x,y,z").
         if (initial_centroids.startsWith("det++")) {
             IJ.log("Deterministic k-means++ initialization");
-            _fillKMeansDetPlusPlus(initial_points);
-            return;
+            return _fillKMeansDetPlusPlus(initial_points);
         }
 
         String[] point_triplets = initial_centroids.split(";");
@@ -302,35 +436,34 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
             _fillRandomPoints(initial_points, point_triplets.length, r);
         }
 
+        return initial_points.length;
+
     }
 
     /*
      * This method fills the initial centroids for the KMeans++ initialization
-     * method.
+     * method. If no voxel can be chosen for a centroid (all of them are at
+     * distance 0 from the current ones), the rest are random unused voxels.
+     * Returns the number of points filled.
      */
-    private void _fillKMeansPlusPlus(int[][] initial_points, Random r) {
+    private int _fillKMeansPlusPlus(int[][] initial_points, Random r) {
         
         IJ.showStatus("K-means++ initialization...");
 
         int[] dim = ip.getDimensions(); // 0 -> x; 1 -> y; 3 -> z
-        double [] tac;
         
-        // First point is random, but don't pick up noise regardless
-        // of the skip_noisy variable
-        do {
-            initial_points[0][0] = r.nextInt(dim[0]);
-            initial_points[0][1] = r.nextInt(dim[1]);
-            initial_points[0][2] = r.nextInt(dim[3]) + 1;
-            tac = ip.getTAC(initial_points[0][0], 
-                    initial_points[0][1], initial_points[0][2]);
-        } while (isMasked(tac, ip.CALZERO));
+        // First point is random, but don't pick up masked voxels: choose
+        // it directly from the mask index.
+        int row = r.nextInt(ip.getVoxelCount());
+        initial_points[0][0] = ip.getX(row);
+        initial_points[0][1] = ip.getY(row);
+        initial_points[0][2] = ip.getSlice(row);
         
         // Every other point depends on the distance to each centroid
         for (int i = 1; i < initial_points.length; i++) {
             
             double distance;
             double p = 0.0;
-            Voxel chosen = null;
             
             // Get current centroids
             double [][] current_centroids = new double[i][dim[4]];
@@ -339,27 +472,302 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
                                                  initial_points[j][1],
                                                  initial_points[j][2]);
             }
+            double [][] prepared = metric.prepare(current_centroids);
+            double [] distances = new double[i];
+            boolean found = false;
             
-            for (Voxel v : ip) {        
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {        
                 // Each new center is chosen with p proportional to distance^2
                 // Note that the distance is already squared in the auxiliar
                 // function.                
                 if (!_alreadyChosen(initial_points, v, i)) {
-                    distance = _shortestDistance(current_centroids, v);
+                    distance = _shortestDistance(prepared, v.getRow(), v.tac,
+                                                 distances);
                     double p1 = r.nextDouble() * distance;
                     if (p1 > p) {
                         p = p1;
-                        chosen = v;
+                        found = true;
+                        initial_points[i][0] = v.x;
+                        initial_points[i][1] = v.y;
+                        initial_points[i][2] = v.slice;
                     }   
                 }                
             }
-            initial_points[i][0] = chosen.x;
-            initial_points[i][1] = chosen.y;
-            initial_points[i][2] = chosen.slice;            
+
+            if (!found) {
+                IJ.log("K-means++: no voxel left with a positive distance " +
+                       "to the centroids. Choosing the rest randomly.");
+                return _fillUnusedPoints(initial_points, i, r);
+            }
         }
+
+        return initial_points.length;
     }
     
-    private void _fillKMeansDetPlusPlus(int [][] initial_points) {
+    /*
+     * Scalable k-means++ (k-means||, Bahmani et al., 2012). Starting from a
+     * random voxel, each round samples about OVERSAMPLING * k voxels, each
+     * one with a probability proportional to its squared distance to the
+     * closest candidate so far. After INIT_ROUNDS rounds, every candidate 
+     * is weighted by the number of voxels closest to it, and k of them are
+     * chosen with a weighted k-means++. Only the distances to the new 
+     * candidates are computed in each round, in parallel.
+     * 
+     * For EUCLIDEAN metrics, comparison values are used as squared 
+     * distances directly: they may differ by a constant factor, which does
+     * not change the probabilities. Returns the number of points filled.
+     */
+    private int _fillKMeansParallel(int[][] initial_points, Random r) {
+
+        IJ.showStatus("K-means|| initialization...");
+
+        int k = initial_points.length;
+        int t = ip.getDimensions()[4];
+
+        ArrayList<Integer> candidates = sampleCandidates(k, r);
+
+        int c = candidates.size();
+        int [] rows = new int[c];
+        double [][] tacs = new double[c][t];
+        for (int j = 0; j < c; j++) {
+            rows[j] = candidates.get(j);
+            ip.getTAC(rows[j], tacs[j]);
+        }
+        IJ.log(String.format("K-means||: %d candidates.", c));
+
+        // Weighted k-means++ on the candidates
+        double [] weights = _countClosest(metric.prepare(tacs));
+        double [] d2 = new double[c];
+        Arrays.fill(d2, Double.MAX_VALUE);
+        double [] p = weights.clone();
+        double [] buf = new double[1];
+        boolean euclidean = metric.has(Capability.EUCLIDEAN);
+        int chosen = 0;
+        while (chosen < k) {
+            int j = _pick(p, r);
+            if (j == -1) break;
+            initial_points[chosen][0] = ip.getX(rows[j]);
+            initial_points[chosen][1] = ip.getY(rows[j]);
+            initial_points[chosen][2] = ip.getSlice(rows[j]);
+            chosen++;
+
+            double [][] prepared = metric.prepare(new double[][] {tacs[j]});
+            for (int i = 0; i < c; i++) {
+                metric.comparisonDistances(rows[i], tacs[i], prepared, buf);
+                double c2 = buf[0];
+                if (!euclidean) {
+                    double d = metric.toDistance(c2);
+                    c2 = d * d;
+                }
+                if (c2 < d2[i]) d2[i] = c2;
+                p[i] = weights[i] * _weight(d2[i]);
+            }
+        }
+
+        // Not enough different voxels among the candidates
+        if (chosen < k) return _fillUnusedPoints(initial_points, chosen, r);
+
+        return k;
+
+    }
+
+    /*
+     * Oversampling rounds of k-means||: returns the rows of the candidates
+     * for k clusters, starting with a random one. Package-private for the
+     * tests.
+     */
+    ArrayList<Integer> sampleCandidates(int k, Random r) {
+
+        int n = ip.getVoxelCount();
+        double l = OVERSAMPLING * k;
+
+        // Squared distance from each voxel to its closest candidate (see
+        // _updateClosest())
+        double [] closest = new double[n];
+        Arrays.fill(closest, Double.MAX_VALUE);
+
+        ArrayList<Integer> candidates = new ArrayList<Integer>();
+        candidates.add(r.nextInt(n));
+        int done = 0;
+        for (int round = 0; ; round++) {
+            double cost = _updateClosest(candidates, done, closest);
+            done = candidates.size();
+            if (round == INIT_ROUNDS || !(cost > 0.0)) break;
+            // Sample with probability min(1, l * closest / cost). Chosen
+            // voxels (and identical ones) are never chosen again.
+            for (int row = 0; row < n; row++) {
+                if (r.nextDouble() * cost < l * _weight(closest[row])) 
+                    candidates.add(row);
+            }
+        }
+
+        return candidates;
+
+    }
+
+    /*
+     * Sampling weight of a voxel whose closest candidate is at squared
+     * distance d2. Voxels without a finite distance to any candidate (NaN
+     * values, constant TACs for the correlation metrics...) are never
+     * sampled, and they do not add to the cost, which would otherwise 
+     * become infinite and stop the sampling altogether.
+     */
+    private static double _weight(double d2) {
+        return d2 < Double.MAX_VALUE ? d2 : 0.0;
+    }
+
+    /*
+     * Updates the squared distance from each voxel to its closest 
+     * candidate (or the comparison value, for EUCLIDEAN metrics), with the
+     * candidates from position first onwards, and returns the sum of their
+     * sampling weights (see _weight()). Voxels are processed in parallel, in
+     * chunks, and the chunk sums are added in order.
+     */
+    private double _updateClosest(ArrayList<Integer> candidates, int first,
+                                  final double[] closest) {
+
+        int t = ip.getDimensions()[4];
+        double [][] centroids = new double[candidates.size() - first][t];
+        for (int j = 0; j < centroids.length; j++)
+            ip.getTAC(candidates.get(first + j), centroids[j]);
+        final double [][] prepared = metric.prepare(centroids);
+
+        final int [] limits = _getChunks();
+        final int chunks = limits.length - 1;
+        final double [] chunk_costs = new double[chunks];
+        final AtomicInteger next_chunk = new AtomicInteger();
+        final boolean euclidean = metric.has(Capability.EUCLIDEAN);
+
+        ClusteringMetric [] metrics = 
+                getThreadMetrics(_getPassThreads(chunks));
+        Runnable [] tasks = new Runnable[metrics.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final ClusteringMetric m = metrics[i];
+            tasks[i] = new Runnable() {
+                public void run() {
+                    double [] distances = new double[prepared.length];
+                    int c;
+                    while ((c = next_chunk.getAndIncrement()) < chunks) {
+                        int from = limits[c];
+                        int to = limits[c + 1];
+                        double cost = 0.0;
+                        VoxelCursor v = ip.cursor(from, to);
+                        while (v.next()) {
+                            int row = v.getRow();
+                            m.comparisonDistances(row, v.tac, prepared,
+                                                  distances);
+                            int index = _getClosestCluster(distances);
+                            if (index != -1) {
+                                double c2 = distances[index];
+                                if (!euclidean) {
+                                    double d = m.toDistance(c2);
+                                    c2 = d * d;
+                                }
+                                if (c2 < closest[row]) closest[row] = c2;
+                            }
+                            cost += _weight(closest[row]);
+                        }
+                        chunk_costs[c] = cost;
+                    }
+                }
+            };
+        }
+        runInParallel(tasks);
+
+        double cost = 0.0;
+        for (int c = 0; c < chunks; c++)
+            cost += chunk_costs[c];
+
+        return cost;
+
+    }
+
+    /*
+     * Returns the number of voxels whose closest centroid is each one of 
+     * the given (prepared) centroids. Voxels are processed in parallel.
+     */
+    private double[] _countClosest(final double[][] prepared) {
+
+        final int k = prepared.length;
+        final int [] limits = _getChunks();
+        final int chunks = limits.length - 1;
+        final int [][] chunk_counts = new int[chunks][];
+        final AtomicInteger next_chunk = new AtomicInteger();
+        final boolean bounded = metric.has(Capability.BOUNDED);
+
+        ClusteringMetric [] metrics = 
+                getThreadMetrics(_getPassThreads(chunks));
+        Runnable [] tasks = new Runnable[metrics.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final ClusteringMetric m = metrics[i];
+            tasks[i] = new Runnable() {
+                public void run() {
+                    double [] distances = new double[k];
+                    int c;
+                    while ((c = next_chunk.getAndIncrement()) < chunks) {
+                        int from = limits[c];
+                        int to = limits[c + 1];
+                        int [] counts = new int[k];
+                        VoxelCursor v = ip.cursor(from, to);
+                        while (v.next()) {
+                            int index;
+                            if (bounded) {
+                                index = _getClosestCluster(m, prepared,
+                                        v.getRow(), v.tac);
+                            } else {
+                                m.comparisonDistances(v.getRow(), v.tac, 
+                                                      prepared, distances);
+                                index = _getClosestCluster(distances);
+                            }
+                            if (index != -1) counts[index]++;
+                        }
+                        chunk_counts[c] = counts;
+                    }
+                }
+            };
+        }
+        runInParallel(tasks);
+
+        double [] res = new double[k];
+        for (int c = 0; c < chunks; c++)
+            for (int j = 0; j < k; j++)
+                res[j] += chunk_counts[c][j];
+
+        return res;
+
+    }
+
+    /*
+     * Returns a random index, with a probability proportional to the given
+     * weights, or -1 if all of them are zero.
+     */
+    private int _pick(double[] weights, Random r) {
+
+        double total = 0.0;
+        for (int j = 0; j < weights.length; j++)
+            total += weights[j];
+        if (!(total > 0.0)) return -1;
+
+        double target = r.nextDouble() * total;
+        int last = -1;
+        for (int j = 0; j < weights.length; j++) {
+            if (weights[j] <= 0.0) continue;
+            last = j;
+            target -= weights[j];
+            if (target < 0.0) return j;
+        }
+
+        // Rounding errors
+        return last;
+
+    }
+
+    /*
+     * Deterministic k-means++ initialization. If no voxel can be chosen for
+     * a centroid, k is reduced. Returns the number of points filled.
+     */
+    private int _fillKMeansDetPlusPlus(int [][] initial_points) {
         
         IJ.showStatus("Deterministic k-means++ initialization...");
         
@@ -379,13 +787,16 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
             initial_centroids.indexOf(';') != -1) {
             // User has not provided a valid initial point, let's get the
             // one with the biggest amplitude.           
+            // Peak values come from the feature cache.
             double maxamplitude = 0.0;            
-            for (Voxel v : ip) {
-                double m = StatUtils.max(v.tac);
+            VoxelFeatures f = ip.getFeatures();
+            int n = ip.getVoxelCount();
+            for (int row = 0; row < n; row++) {
+                double m = f.getPeak(row);
                 if (m > maxamplitude) {
-                    initial_points[0][0] = v.x;
-                    initial_points[0][1] = v.y;
-                    initial_points[0][2] = v.slice;
+                    initial_points[0][0] = ip.getX(row);
+                    initial_points[0][1] = ip.getY(row);
+                    initial_points[0][2] = ip.getSlice(row);
                     maxamplitude = m;
                 }
             }  
@@ -397,22 +808,39 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
             initial_points[0][2] = Integer.parseInt(coordinates[2]);            
         }
         
+        if (initial_points.length == 1) return 1;
+        
         // Initialize current_centroids (for now).
         double [][] current_centroids = new double[1][dim[4]];
         current_centroids[0] = ip.getTAC(initial_points[0][0],
                                          initial_points[0][1],
                                          initial_points[0][2]);
-        // The second point is the one furthest from this one.
+        // The second point is the one furthest from this one. Distances
+        // are computed between smoothed TACs: the voxels are smoothed only
+        // once (in the feature cache), and the centroids once per point.
+        VoxelFeatures f = ip.getFeatures();
+        double [] smoothed = new double[dim[4]];
+        double [][] prepared = metric.prepare(_smooth(current_centroids));
+        double [] distances = new double[initial_points.length];
         double temp_distance = 0.0;
-        for (Voxel v : ip) {
-            double d = _biggestDistance(current_centroids, v);
+        boolean found = false;
+        VoxelCursor v = ip.cursor();
+        while (v.next()) {
+            f.getSmoothed(v.getRow(), smoothed);
+            double d = _biggestDistance(prepared, smoothed, distances);
             if (d > temp_distance) {
                 temp_distance = d;
+                found = true;
                 initial_points[1][0] = v.x;
                 initial_points[1][1] = v.y;
                 initial_points[1][2] = v.slice;
             }
         }
+        if (!found) {
+            IJ.log("Deterministic k-means++: all voxels are at distance 0 " +
+                   "from the first centroid.");
+            return 1;
+        }
         
         // Re-init current_centroids
         current_centroids = new double[2][dim[4]];
@@ -427,8 +855,10 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
         // Every other point depends on the distance to each centroid
         for (int i = 2; i < initial_points.length; i++) {
             
-            double distance = -Double.MAX_VALUE;            
-            Voxel chosen = null;
+            // Voxels at distance 0 from a centroid would be duplicated 
+            // seeds (see _biggestDistance)
+            double distance = 0.0;            
+            found = false;
             
             // Get current centroids
             current_centroids = new double[i][dim[4]];
@@ -437,32 +867,42 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
                                                  initial_points[j][1],
                                                  initial_points[j][2]);
             }
+            prepared = metric.prepare(_smooth(current_centroids));
             
-            for (Voxel v : ip) {                
+            v = ip.cursor();
+            while (v.next()) {                
                 // Each new center is chosen depending on its distance, not
                 // on the probability weighted by the distance. This makes
                 // this method deterministic: every time the initialization
                 // is the same.
                 if (!_alreadyChosen(initial_points, v, i)) {
-                    double d = _biggestDistance(current_centroids, v);                
+                    f.getSmoothed(v.getRow(), smoothed);
+                    double d = _biggestDistance(prepared, smoothed, 
+                                                distances);
                     if (d > distance) {
+                        // Set the chosen voxel
                         distance = d;
-                        chosen = v;    
+                        found = true;
+                        initial_points[i][0] = v.x;
+                        initial_points[i][1] = v.y;
+                        initial_points[i][2] = v.slice;
                     }                    
                 }                
             }        
-
-            // Set the chosen voxel
-            initial_points[i][0] = chosen.x;
-            initial_points[i][1] = chosen.y;
-            initial_points[i][2] = chosen.slice;            
+            if (!found) {
+                IJ.log("Deterministic k-means++: no voxel left for " +
+                       "centroid " + (i + 1) + ".");
+                return i;
+            }
         }
+
+        return initial_points.length;
     }
     
     // Returns whether a given Voxel is already present in the set of 
     // chosen voxels.
-    private boolean _alreadyChosen(int [][] initial_centroids, Voxel v, 
-                                   int limit) {
+    private boolean _alreadyChosen(int [][] initial_centroids, 
+                                   VoxelCursor v, int limit) {
         for (int i = 0; i < limit; i++) {
             if (v.x == initial_centroids[i][0] && 
                 v.y == initial_centroids[i][1] &&
@@ -474,16 +914,19 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
     
     /*
      * Computes the squared distance between the given voxel and its 
-     * closest centroid.
+     * closest centroid. The centroids must have been prepared by the
+     * metric, and distances is used as a temporary buffer.
      */
-    private double _shortestDistance(double [][] current_centroids, 
-                                     Voxel v) {
+    private double _shortestDistance(double [][] prepared, int row, 
+                                     double [] tac, double [] distances) {
         
         double distance = Double.MAX_VALUE;  
         double sumsq = 0.0;
+        
+        metric.distances(row, tac, prepared, distances);
        
-        for (int j = 0; j < current_centroids.length; j++) {                   
-            double d = metric.distance(current_centroids[j], v.tac);
+        for (int j = 0; j < prepared.length; j++) {                   
+            double d = distances[j];
             sumsq += d * d;
             if (d < distance)
                 distance = d;       
@@ -493,22 +936,44 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
     }
     
     /*
-     * Computes the biggest distance to the current_centroids array.
+     * Computes the biggest distance to the given centroids. Both the 
+     * centroids and the TAC must be already smoothed, and the centroids 
+     * prepared by the metric. distances is used as a temporary buffer.
+     * Returns 0.0 if the TAC is at distance 0 from any of the centroids.
      */
-    private double _biggestDistance(double[][] current_centroids, Voxel v) {
+    private double _biggestDistance(double[][] prepared, double[] smoothed,
+                                    double[] distances) {
         
         double distance = -Double.MAX_VALUE;    
         
-        for (int j = 0; j < current_centroids.length; j++) {                   
-            double d = metric.distance(MathUtils.smooth(current_centroids[j]),
-                                       MathUtils.smooth(v.tac));
+        // The smoothed TAC is not the TAC of the voxel, so do not give the
+        // metric its row. Only the biggest value is turned into an actual
+        // distance.
+        metric.comparisonDistances(-1, smoothed, prepared, distances);
+        
+        for (int j = 0; j < prepared.length; j++) {                   
+            double d = distances[j];
+            if (d == 0.0) return 0.0;
             if (d > distance)
                 distance = d;       
         }
         
+        distance = metric.toDistance(distance);
         return distance * distance;
     }
 
+    /*
+     * Returns a smoothed copy of every centroid.
+     */
+    private double[][] _smooth(double[][] centroids) {
+        
+        double [][] res = new double[centroids.length][];
+        for (int j = 0; j < centroids.length; j++)
+            res[j] = MathUtils.smooth(centroids[j]);
+        return res;
+        
+    }
+
     /**
      * Fills the {@code initial_points} array starting from a certain
      * offset with random points. Assumes that it is very difficult to select
@@ -520,21 +985,50 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
     private void _fillRandomPoints(int[][] initial_points, int start, 
                                    Random r) {
 
-        int[] dim = ip.getDimensions(); // 0 -> x; 1 -> y; 3 -> slices
-        double [] tac;
+        int[] dim = ip.getDimensions(); // 4 -> frames
+        double [] tac = new double[dim[4]];
+        
+        // Points are chosen from the mask index, so they are never masked
+        int n = ip.getVoxelCount();
 
         for (int i = start; i < n_clusters; i++) {
             do {
-                initial_points[i][0] = r.nextInt(dim[0]);
-                initial_points[i][1] = r.nextInt(dim[1]);
-                initial_points[i][2] = r.nextInt(dim[3]) + 1;
-                tac = ip.getTAC(initial_points[i][0],
-                        initial_points[i][1], initial_points[i][2]);
-            } while (isMasked(tac, ip.CALZERO) || 
-                     _alreadyChosen(initial_points, tac, i - 1));
+                int row = r.nextInt(n);
+                initial_points[i][0] = ip.getX(row);
+                initial_points[i][1] = ip.getY(row);
+                initial_points[i][2] = ip.getSlice(row);
+                ip.getTAC(row, tac);
+            } while (_alreadyChosen(initial_points, tac, i - 1));
         }
     }
 
+    /*
+     * Fills initial_points from position start with random voxels whose
+     * TACs have not been chosen yet. Gives up after MAX_RANDOM_ATTEMPTS
+     * tries for the same point, as there may be less different TACs than
+     * clusters. Returns the number of points filled in total.
+     */
+    private int _fillUnusedPoints(int[][] initial_points, int start, 
+                                  Random r) {
+
+        int n = ip.getVoxelCount();
+        double [] tac = new double[ip.getDimensions()[4]];
+
+        for (int i = start; i < initial_points.length; i++) {
+            int attempts = 0;
+            do {
+                if (attempts++ == MAX_RANDOM_ATTEMPTS) return i;
+                int row = r.nextInt(n);
+                initial_points[i][0] = ip.getX(row);
+                initial_points[i][1] = ip.getY(row);
+                initial_points[i][2] = ip.getSlice(row);
+                ip.getTAC(row, tac);
+            } while (_alreadyChosen(initial_points, tac, i));
+        }
+
+        return initial_points.length;
+    }
+
     /*
      * Checks whether the actual TAC has already been chosen in one of the
      * initial_points array, up to the limit int.
@@ -563,9 +1057,10 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
 
         boolean correct = false;
         
-        // If k-means++ (or deterministic k-means++), return true automatically
-        if (initial_centroids.equals("++") ||
-            initial_centroids.startsWith("det++")) return correct;
+        // If k-means++ (deterministic k-means++ or k-means||), return true 
+        // automatically
+        if (initial_centroids.equals("++") || initial_centroids.equals("||") 
+            || initial_centroids.startsWith("det++")) return correct;
         
         // Trim initial_centroids
         initial_centroids = initial_centroids.trim();        
@@ -612,48 +1107,804 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
     }
 
     /*
-     * Performs an iteration of the algorithm and creates a new ArrayList of
-     * Cluster objects that is returned. Also sets the corresponding voxels in
-     * the {@link ImageStack}.
+     * Performs an iteration of the algorithm: every voxel is labelled with
+     * the index of its closest centroid (-1 if none is suitable), and the
+     * mean TAC of the voxels of each cluster is returned (null for empty
+     * clusters).
+     * 
+     * Voxels are processed in parallel, in chunks (see _getChunks()). Each
+     * chunk adds up the TACs of each cluster on its own, and the chunk sums
+     * are merged in order at the end, so that the result does not depend
+     * on the number of threads.
      */
-    private ArrayList<Cluster> _iterate(ArrayList<Cluster> models) {
+    private double[][] _iterate(double[][] centroids, final int[] labels,
+                                final Assignment a) {
+
+        final int k = centroids.length;
+        final int t = ip.getDimensions()[4];
+        final int n = ip.getVoxelCount();
+        final int [] limits = _getChunks();
+        final int chunks = limits.length - 1;
+
+        // The centroids do not change during the iteration, so the
+        // metric can prepare them only once.
+        final double [][] prepared = metric.prepare(centroids);
+        a.setup(centroids, prepared);
+
+        final double [][] chunk_sums = new double[chunks][];
+        final long [] computed = new long[chunks];
+        final int [][] chunk_counts = new int[chunks][];
+        final AtomicInteger next_chunk = new AtomicInteger();
+
+        // One task per thread, each one with its own metric instance
+        ClusteringMetric [] metrics = 
+                getThreadMetrics(_getPassThreads(chunks));
+        Runnable [] tasks = new Runnable[metrics.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final ClusteringMetric m = metrics[i];
+            tasks[i] = new Runnable() {
+                public void run() {
+                    double [] distances = new double[k];
+                    long [] count = new long[1];
+                    int c;
+                    while ((c = next_chunk.getAndIncrement()) < chunks) {
+                        int from = limits[c];
+                        int to = limits[c + 1];
+                        double [] sums = new double[k * t];
+                        int [] counts = new int[k];
+                        count[0] = 0;
+                        
+                        // Get each TAC, compare and add it to the closest
+                        // cluster. Only the order of the distances matters
+                        // here.
+                        VoxelCursor v = ip.cursor(from, to);
+                        while (v.next()) {
+                            int row = v.getRow();
+                            int index = a.assign(m, prepared, row, v.tac,
+                                                 labels[row], distances,
+                                                 count);
+                            labels[row] = index;
+
+                            // For some reason, no suitable cluster has 
+                            // been found: continue.
+                            if (index == -1) continue;
+
+                            counts[index]++;
+                            int offset = index * t;
+                            for (int j = 0; j < t; j++)
+                                sums[offset + j] += v.tac[j];
+                        }
+                        
+                        chunk_sums[c] = sums;
+                        chunk_counts[c] = counts;
+                        computed[c] = count[0];
+                    }
+                }
+            };
+        }
+        runInParallel(tasks);
+
+        // Merge the chunks, always in the same order
+        double [] sums = new double[k * t];
+        int [] counts = new int[k];
+        a.total += (long) n * k;
+        for (int c = 0; c < chunks; c++) {
+            a.computed += computed[c];
+            for (int j = 0; j < k; j++)
+                counts[j] += chunk_counts[c][j];
+            double [] cs = chunk_sums[c];
+            for (int i = 0; i < sums.length; i++)
+                sums[i] += cs[i];
+        }
 
-        // Create a result ArrayList and initialize the original centroids
-        // to the previous TACs
-        int size = models.size();
-        ArrayList<Cluster> res = new ArrayList<Cluster>(size);
-        
-        for (int i = 0; i < size; i++) {
-            res.add(new Cluster(models.get(i).getCentroid()));
+        double [][] means = new double[k][];
+        for (int j = 0; j < k; j++) {
+            if (counts[j] == 0) continue;
+            means[j] = new double[t];
+            for (int i = 0; i < t; i++)
+                means[j][i] = sums[j * t + i] / counts[j];
         }
 
-        // Get each TAC, compare and add it to the closest cluster
-        for (Voxel v : ip) {
+        return means;
+    }
 
-            int cluster_index = _getClosestCluster(v, res);
-            
-            // For some reason, no suitable voxel has been found: continue.
-            if (cluster_index == -1) continue;
+    /*
+     * Mini-batch k-means (Sculley, 2010). Each iteration labels a random
+     * batch of voxels and moves every centroid towards the voxels of the
+     * batch assigned to it, with a learning rate of 1 / (number of voxels
+     * assigned to it so far), so that each centroid is the running mean of
+     * its voxels. A held-out sample of voxels, never used for training,
+     * measures the error after every batch. Returns the final centroids.
+     */
+    private double[][] _miniBatch(double[][] centroids, Random r) {
+
+        int k = centroids.length;
+        int t = ip.getDimensions()[4];
+        int n = ip.getVoxelCount();
+
+        // The centroids are updated in place
+        double [][] res = new double[k][];
+        for (int j = 0; j < k; j++)
+            res[j] = centroids[j].clone();
+        long [] seen = new long[k];
+
+        // Held-out sample, read only once
+        BitSet held = new BitSet(n);
+        int [] holdout = _sampleRows(r, Math.max(1, Math.min(batch_size, 
+                                     n / HOLDOUT_FRACTION)), held, true);
+        double [][] holdout_tacs = _readRows(holdout, null);
+        int [] holdout_labels = new int[holdout.length];
+        double [] holdout_errors = new double[holdout.length];
+
+        double [][] batch_tacs = null;
+        int [] batch_labels = new int[batch_size];
+        double [] batch_errors = new double[batch_size];
+
+        double best = Double.MAX_VALUE;
+        int stalled = 0;
+        int it = 0;
+
+        while (stalled < PATIENCE && it < max_iterations) {
+            it++;
+            IJ.showStatus("K-Means: mini-batch " + it + "/" + 
+                          max_iterations);
+
+            // Label a new batch with the current centroids
+            int [] rows = _sampleRows(r, batch_size, held, false);
+            batch_tacs = _readRows(rows, batch_tacs);
+            _label(metric.prepare(res), rows, batch_tacs, batch_labels,
+                   batch_errors);
+
+            // Move the centroids. Adding up the batch first gives the same
+            // running means as moving them one voxel at a time.
+            double [][] sums = new double[k][t];
+            int [] counts = new int[k];
+            for (int i = 0; i < rows.length; i++) {
+                int index = batch_labels[i];
+                if (index == -1) continue;
+                counts[index]++;
+                for (int j = 0; j < t; j++)
+                    sums[index][j] += batch_tacs[i][j];
+            }
+            for (int index = 0; index < k; index++) {
+                if (counts[index] == 0) continue;
+                seen[index] += counts[index];
+                double [] c = res[index];
+                for (int j = 0; j < t; j++)
+                    c[j] += (sums[index][j] - counts[index] * c[j]) / 
+                            seen[index];
+            }
+
+            // Held-out error
+            _label(metric.prepare(res), holdout, holdout_tacs, 
+                   holdout_labels, holdout_errors);
+            double error = 0.0;
+            for (int i = 0; i < holdout.length; i++)
+                error += holdout_errors[i];
+
+            if (error < best * (1.0 - end / 100)) stalled = 0;
+            else stalled++;
+            if (error < best) best = error;
+
+        }
 
-            // Set results.
-            res.get(cluster_index).add(v);
-        }  
+        IJ.log(String.format("Mini-batch k-means: %d batches of %d voxels " +
+                             "needed. Held-out error: %g (%d voxels).", it,
+                             batch_size, best, holdout.length));
+
+        return res;
+
+    }
+
+    /*
+     * Returns count random rows, sorted, which are not in the exclude set.
+     * If distinct is true, rows are not repeated and they are added to 
+     * the set.
+     */
+    private int[] _sampleRows(Random r, int count, BitSet exclude, 
+                              boolean distinct) {
+
+        int n = ip.getVoxelCount();
+        int [] res = new int[count];
+        for (int i = 0; i < count; i++) {
+            int row;
+            do {
+                row = r.nextInt(n);
+            } while (exclude.get(row));
+            if (distinct) exclude.set(row);
+            res[i] = row;
+        }
 
+        Arrays.sort(res);
         return res;
+
     }
 
     /*
-     * Returns the cluster index which is closest to the given tac.
+     * Reads the TACs of the given rows into dest, which is allocated if
+     * null.
      */
-    private int _getClosestCluster(Voxel v, ArrayList<Cluster> l) {
+    private double[][] _readRows(int[] rows, double[][] dest) {
+
+        if (dest == null) 
+            dest = new double[rows.length][ip.getDimensions()[4]];
+        for (int i = 0; i < rows.length; i++)
+            ip.getTAC(rows[i], dest[i]);
+
+        return dest;
+
+    }
+
+    /*
+     * Labels the given rows (with their TACs) in parallel, and stores the
+     * squared distance of each one to its closest centroid in errors 
+     * (0.0 if no centroid is suitable).
+     */
+    private void _label(final double[][] prepared, final int[] rows,
+                        final double[][] tacs, final int[] labels,
+                        final double[] errors) {
+
+        final int count = rows.length;
+        ClusteringMetric [] metrics = getThreadMetrics(
+                Math.max(1, Math.min(getThreads(), count / CHUNK_ROWS)));
+        Runnable [] tasks = new Runnable[metrics.length];
+        for (int p = 0; p < tasks.length; p++) {
+            final ClusteringMetric m = metrics[p];
+            final int from = (int) ((long) count * p / tasks.length);
+            final int to = (int) ((long) count * (p + 1) / tasks.length);
+            tasks[p] = new Runnable() {
+                public void run() {
+                    double [] distances = new double[prepared.length];
+                    for (int i = from; i < to; i++) {
+                        m.comparisonDistances(rows[i], tacs[i], prepared, 
+                                              distances);
+                        int index = _getClosestCluster(distances);
+                        labels[i] = index;
+                        double d = index == -1 ? 0.0 : 
+                                   m.toDistance(distances[index]);
+                        errors[i] = d * d;
+                    }
+                }
+            };
+        }
+        runInParallel(tasks);
+
+    }
+
+    /*
+     * Returns the first row of every chunk of voxels processed by the
+     * parallel passes, followed by the number of voxels. Chunks have 
+     * CHUNK_ROWS rows, except for virtual stacks without a TAC matrix, 
+     * where each chunk is a slice: VoxelCursor loads all the planes of a
+     * slice at once, so a slice split in several chunks would be loaded 
+     * once per chunk.
+     */
+    private int[] _getChunks() {
+
+        int n = ip.getVoxelCount();
+        int [] res;
+
+        if (_readsVirtualStack()) {
+            int slices = ip.getDimensions()[3];
+            res = new int[slices + 1];
+            for (int s = 1; s <= slices; s++)
+                res[s - 1] = ip.getFirstRow(s);
+        } else {
+            res = new int[(n + CHUNK_ROWS - 1) / CHUNK_ROWS + 1];
+            for (int c = 0; c < res.length - 1; c++)
+                res[c] = c * CHUNK_ROWS;
+        }
+        res[res.length - 1] = n;
+
+        return res;
+
+    }
+
+    /*
+     * Returns the number of threads for a parallel pass over the given
+     * number of chunks. Virtual stacks without a TAC matrix are read by a
+     * single thread, as loading their planes is not thread-safe.
+     */
+    private int _getPassThreads(int chunks) {
+
+        if (_readsVirtualStack()) return 1;
+        return Math.max(1, Math.min(getThreads(), chunks));
+
+    }
+
+    /*
+     * True if the TACs are read from a virtual stack, that loads its 
+     * planes from disk every time they are accessed.
+     */
+    private boolean _readsVirtualStack() {
+        return ip.isVirtual() && ip.getTACMatrix() == null;
+    }
+
+    /*
+     * Returns the assignment strategy selected in the configuration panel,
+     * if it is valid for the metric. "Automatic" uses Hamerly's algorithm
+     * for up to HAMERLY_MAX_K clusters and Elkan's for more, if the metric
+     * allows it.
+     */
+    private Assignment _getAssignment() {
+
+        boolean valid = metric.has(Capability.METRIC);
+
+        if (assignment.equals("Automatic")) {
+            if (!valid) return new StandardAssignment();
+            if (n_clusters <= HAMERLY_MAX_K) return new HamerlyAssignment();
+            return _getElkanAssignment();
+        }
+
+        if (assignment.equals("Elkan") || assignment.equals("Hamerly")) {
+            if (valid) {
+                if (assignment.equals("Elkan")) return _getElkanAssignment();
+                return new HamerlyAssignment();
+            }
+            IJ.log(assignment + " acceleration needs a metric that " +
+                   "satisfies the triangle inequality. Using the standard " +
+                   "assignment.");
+        }
+
+        return new StandardAssignment();
+
+    }
+
+    /*
+     * Elkan's algorithm keeps k lower bounds per voxel in a single array.
+     * If they do not fit in one, Hamerly's algorithm is used instead.
+     */
+    private Assignment _getElkanAssignment() {
+
+        if ((long) ip.getVoxelCount() * n_clusters > Integer.MAX_VALUE) {
+            IJ.log("Too many voxels and clusters for the Elkan " +
+                   "acceleration. Using Hamerly's.");
+            return new HamerlyAssignment();
+        }
+
+        return new ElkanAssignment();
+
+    }
+
+    /*
+     * Assignment step strategy: finds the closest centroid to each voxel.
+     * Accelerated versions keep bounds from previous iterations to skip 
+     * distance computations, and they must give exactly the same labels 
+     * as the standard one. (An abstract class, as the technique discovery
+     * in Utils cannot deal with interfaces in this package.)
+     */
+    private abstract class Assignment {
+
+        // Name for the log, or null if there is nothing to report
+        final String name;
+
+        // Distances computed and distances a standard assignment needs
+        long computed = 0, total = 0;
+
+        Assignment(String name) {
+            this.name = name;
+        }
+
+        /*
+         * Called before each iteration, from a single thread, with the
+         * centroids and their prepared versions.
+         */
+        abstract void setup(double[][] centroids, double[][] prepared);
+
+        /*
+         * Returns the index of the closest centroid to the given voxel, or
+         * -1 if none is suitable. label is the one found in the previous
+         * iteration, buf a scratch array as long as the number of 
+         * centroids, and count[0] must be increased by the number of 
+         * distances computed. May be called from several threads, with
+         * different voxels and metric instances.
+         */
+        abstract int assign(ClusteringMetric m, double[][] prepared, 
+                            int row, double[] tac, int label, double[] buf,
+                            long[] count);
+
+        /*
+         * Logs how many distance computations have been skipped.
+         */
+        void report() {
+            if (name == null || total == 0) return;
+            IJ.log(String.format("%s: %d of %d distances computed " +
+                                 "(%.1f%% skipped).", name, computed, total,
+                                 100.0 * (total - computed) / total));
+        }
+
+    }
+
+    /*
+     * Computes the distance to every centroid.
+     */
+    private class StandardAssignment extends Assignment {
+
+        private boolean bounded;
+
+        StandardAssignment() {
+            super(null);
+        }
+
+        void setup(double[][] centroids, double[][] prepared) {
+            bounded = metric.has(Capability.BOUNDED);
+        }
+
+        int assign(ClusteringMetric m, double[][] prepared, int row,
+                   double[] tac, int label, double[] buf, long[] count) {
+
+            count[0] += prepared.length;
+            if (bounded)
+                return _getClosestCluster(m, prepared, row, tac);
+            m.comparisonDistances(row, tac, prepared, buf);
+            return _getClosestCluster(buf);
+
+        }
+
+    }
+
+    /*
+     * Base class for the assignments that use the triangle inequality.
+     * Keeps the distance moved by each centroid since the previous
+     * iteration and half the distances between centroids. Only one
+     * distance is computed for each pair of centroids.
+     * 
+     * Bounds are loosened by BOUND_SLACK (relative), so that rounding
+     * errors never discard the closest centroid. Centroids are only 
+     * discarded when they are strictly further than the current one, and
+     * ties go to the lowest index, as in the standard assignment.
+     */
+    private abstract class TriangleAssignment extends Assignment {
+
+        // Centroids of the previous iteration
+        private double [][] previous;
+        // Distance moved by each centroid since the previous iteration
+        double [] shift;
+        // Half the distance between centroids (only if keep_half), and
+        // to the closest one
+        double [][] half;
+        double [] closest;
+        // Bounds are not valid (first iteration, or clusters dropped)
+        boolean reset;
+
+        private final boolean keep_half;
+
+        TriangleAssignment(String name, boolean keep_half) {
+            super(name);
+            this.keep_half = keep_half;
+        }
+
+        /*
+         * Allocates the bounds for n voxels and k centroids.
+         */
+        abstract void allocate(int n, int k);
+
+        void setup(double[][] centroids, double[][] prepared) {
+
+            int k = centroids.length;
+            double [] buf = new double[k];
+
+            reset = previous == null || previous.length != k;
+            if (reset) {
+                allocate(ip.getVoxelCount(), k);
+            } else {
+                // Only the distance from each centroid to its previous
+                // position is needed
+                shift = new double[k];
+                double [][] single = new double[1][];
+                for (int j = 0; j < k; j++) {
+                    single[0] = prepared[j];
+                    metric.comparisonDistances(-1, previous[j], single, 
+                                               buf);
+                    shift[j] = metric.toDistance(buf[0]);
+                }
+                computed += k;
+            }
+
+            half = keep_half ? new double[k][k] : null;
+            closest = new double[k];
+            Arrays.fill(closest, Double.MAX_VALUE);
+            for (int j = 0; j < k - 1; j++) {
+                // Distances to the centroids after this one
+                double [][] next = Arrays.copyOfRange(prepared, j + 1, k);
+                metric.comparisonDistances(-1, centroids[j], next, buf);
+                for (int i = j + 1; i < k; i++) {
+                    double h = 0.5 * metric.toDistance(buf[i - j - 1]);
+                    if (keep_half) half[j][i] = half[i][j] = h;
+                    if (h < closest[j]) closest[j] = h;
+                    if (h < closest[i]) closest[i] = h;
+                }
+            }
+            computed += (long) k * (k - 1) / 2;
+
+            previous = centroids;
+
+        }
+
+    }
+
+    /*
+     * Elkan's algorithm: for each voxel, keeps an upper bound of the 
+     * distance to its centroid and a lower bound of the distance to every
+     * centroid, and moves them as much as the centroids move. Together 
+     * with the distances between centroids, and thanks to the triangle
+     * inequality, most distances do not need to be computed. Needs 
+     * (k + 1) doubles per voxel.
+     */
+    private class ElkanAssignment extends TriangleAssignment {
+
+        // Upper bound for each row, and lower bounds (row * k + j)
+        private double [] upper, lower;
+
+        ElkanAssignment() {
+            super("Elkan k-means", true);
+        }
+
+        void allocate(int n, int k) {
+            if (upper == null) upper = new double[n];
+            lower = new double[n * k];
+        }
+
+        int assign(ClusteringMetric m, double[][] prepared, int row,
+                   double[] tac, int label, double[] buf, long[] count) {
+
+            int k = prepared.length;
+            int base = row * k;
+
+            if (reset || label < 0)
+                return _assignAll(m, prepared, row, tac, buf, count);
+
+            // Move the bounds with the centroids
+            double u = (upper[row] + shift[label]) * UP;
+            for (int j = 0; j < k; j++) {
+                double l = lower[base + j] * DOWN - shift[j] * UP;
+                lower[base + j] = l > 0.0 ? l : 0.0;
+            }
+
+            int a = label;
+            if (u < closest[a] * DOWN) {
+                upper[row] = u;
+                return a;
+            }
+
+            boolean tight = false;
+            double ca = 0.0;
+            for (int j = 0; j < k; j++) {
+                if (j == a || u < lower[base + j] || u < half[a][j] * DOWN)
+                    continue;
+
+                if (!tight) {
+                    // Make the upper bound tight, and check again
+                    ca = m.boundedDistance(row, tac, prepared[a], 
+                                           Double.MAX_VALUE);
+                    count[0]++;
+                    if (!(ca < Double.MAX_VALUE))
+                        return _assignAll(m, prepared, row, tac, buf, count);
+                    double da = m.toDistance(ca);
+                    u = da * UP;
+                    lower[base + a] = da * DOWN;
+                    tight = true;
+                    if (u < lower[base + j] || u < half[a][j] * DOWN)
+                        continue;
+                }
+
+                // Values bigger than ca are partial sums, but they are 
+                // still valid lower bounds.
+                double cj = m.boundedDistance(row, tac, prepared[j], ca);
+                count[0]++;
+                double dj = m.toDistance(cj);
+                lower[base + j] = dj * DOWN;
+                if (cj < ca || (cj == ca && j < a)) {
+                    a = j;
+                    ca = cj;
+                    u = dj * UP;
+                }
+            }
+
+            upper[row] = u;
+            return a;
+
+        }
+
+        /*
+         * Computes all the distances and sets the bounds for a voxel.
+         */
+        private int _assignAll(ClusteringMetric m, double[][] prepared, 
+                               int row, double[] tac, double[] buf, 
+                               long[] count) {
+
+            int k = prepared.length;
+            int base = row * k;
+
+            m.comparisonDistances(row, tac, prepared, buf);
+            count[0] += k;
+            int index = _getClosestCluster(buf);
+
+            for (int j = 0; j < k; j++)
+                lower[base + j] = m.toDistance(buf[j]) * DOWN;
+            upper[row] = index >= 0 ? m.toDistance(buf[index]) * UP :
+                                      Double.POSITIVE_INFINITY;
+
+            return index;
+
+        }
+
+    }
+
+    /*
+     * Hamerly's algorithm: like Elkan's, but with a single lower bound per
+     * voxel, for the distance to the second closest centroid. It is moved
+     * by the biggest shift of the other centroids. Skips less distances,
+     * but the test is cheaper and it needs only 2 doubles per voxel, so it
+     * is usually faster for a small number of clusters.
+     */
+    private class HamerlyAssignment extends TriangleAssignment {
+
+        // Upper and lower bound for each row
+        private double [] upper, lower;
+        // Centroid with the biggest shift, its shift and the second one
+        private int far;
+        private double far_shift, second_shift;
+
+        HamerlyAssignment() {
+            super("Hamerly k-means", false);
+        }
+
+        void allocate(int n, int k) {
+            if (upper == null) {
+                upper = new double[n];
+                lower = new double[n];
+            }
+        }
+
+        @Override
+        void setup(double[][] centroids, double[][] prepared) {
+
+            super.setup(centroids, prepared);
+            if (reset) return;
+
+            far = -1;
+            far_shift = second_shift = 0.0;
+            for (int j = 0; j < shift.length; j++) {
+                if (far == -1 || shift[j] > far_shift) {
+                    second_shift = far_shift;
+                    far_shift = shift[j];
+                    far = j;
+                } else if (shift[j] > second_shift) {
+                    second_shift = shift[j];
+                }
+            }
+
+        }
+
+        int assign(ClusteringMetric m, double[][] prepared, int row,
+                   double[] tac, int label, double[] buf, long[] count) {
+
+            if (reset || label < 0)
+                return _assignAll(m, prepared, row, tac, buf, count);
+
+            // Move the bounds with the centroids
+            int a = label;
+            double u = (upper[row] + shift[a]) * UP;
+            double l = lower[row] * DOWN - 
+                       (a == far ? second_shift : far_shift) * UP;
+            if (l < 0.0) l = 0.0;
+            lower[row] = l;
+
+            double bound = Math.max(closest[a] * DOWN, l);
+            if (u < bound) {
+                upper[row] = u;
+                return a;
+            }
+
+            // Make the upper bound tight, and check again
+            double ca = m.boundedDistance(row, tac, prepared[a], 
+                                          Double.MAX_VALUE);
+            count[0]++;
+            if (ca < Double.MAX_VALUE) {
+                u = m.toDistance(ca) * UP;
+                if (u < bound) {
+                    upper[row] = u;
+                    return a;
+                }
+            }
+
+            return _assignAll(m, prepared, row, tac, buf, count);
+
+        }
+
+        /*
+         * Computes all the distances and sets the bounds for a voxel.
+         */
+        private int _assignAll(ClusteringMetric m, double[][] prepared, 
+                               int row, double[] tac, double[] buf, 
+                               long[] count) {
+
+            int k = prepared.length;
+
+            m.comparisonDistances(row, tac, prepared, buf);
+            count[0] += k;
+            int index = _getClosestCluster(buf);
+
+            double second = Double.MAX_VALUE;
+            for (int j = 0; j < k; j++)
+                if (j != index && buf[j] < second) second = buf[j];
+
+            upper[row] = index >= 0 ? m.toDistance(buf[index]) * UP :
+                                      Double.POSITIVE_INFINITY;
+            lower[row] = second < Double.MAX_VALUE ? 
+                         m.toDistance(second) * DOWN : 0.0;
+
+            return index;
+
+        }
+
+    }
+
+    /*
+     * Builds the final clusters from the centroids used in the last 
+     * iteration, the mean TACs it computed and the label of every voxel.
+     */
+    private ArrayList<Cluster> _buildClusters(double[][] centroids,
+                                              double[][] means, 
+                                              int[] labels) {
+
+        ArrayList<Cluster> res = new ArrayList<Cluster>(centroids.length);
+        for (int j = 0; j < centroids.length; j++) {
+            Cluster c = new Cluster(centroids[j]);
+            c.setClusterTAC(means[j]);
+            res.add(c);
+        }
+
+        // Peak values come from the feature cache, so that no TAC has to
+        // be read again.
+        VoxelFeatures f = ip.getFeatures();
+        for (int row = 0; row < labels.length; row++) {
+            int index = labels[row];
+            if (index == -1) continue;
+            res.get(index).add(f.getPeak(row), ip.getX(row), ip.getY(row),
+                               ip.getSlice(row));
+        }
+
+        return res;
+    }
+
+    /*
+     * Returns the index of the closest cluster, given the distances to
+     * all of them.
+     */
+    private int _getClosestCluster(double[] distances) {
 
         int index = -1;
-        int size = l.size();
+        int size = distances.length;
         double d = Double.MAX_VALUE;
 
         for (int i = 0; i < size; i++) {
-            double[] centroid = l.get(i).getCentroid();
-            double temp = metric.distance(v, centroid);
+            double temp = distances[i];
+            if (temp < d) {
+                d = temp;
+                index = i;
+            }
+        }
+
+        return index;
+
+    }
+    
+    /*
+     * Returns the index of the closest cluster to the given TAC. The
+     * distance to each centroid is computed only while it may still be
+     * smaller than the best one found so far, with the given instance of
+     * the metric. Gives the same result as _getClosestCluster(double[]).
+     */
+    private int _getClosestCluster(ClusteringMetric m, double[][] prepared,
+                                   int row, double[] tac) {
+
+        int index = -1;
+        double d = Double.MAX_VALUE;
+
+        for (int i = 0; i < prepared.length; i++) {
+            double temp = m.boundedDistance(row, tac, prepared[i], d);
             if (temp < d) {
                 d = temp;
                 index = i;
@@ -668,11 +1919,7 @@ public class KMeans extends ClusteringTechnique implements FocusListener {
      * Computes the squared error between two given TACs
      */
     private double _sse(double [] a, double [] b) {
-        double sse = 0.0;
-        int size = a.length;
-        for (int i = 0; i < size; i++)
-            sse += Math.pow(a[i] - b[i], 2);
-        return sse;
+        return MathUtils.squaredDistance(a, b, a.length);
     }
 
 }
@@ -5,6 +5,7 @@ import java.awt.GridLayout;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 
@@ -13,12 +14,13 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 
-import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.util.FastMath;
 
 import jclustering.Cluster;
 import jclustering.Voxel;
+import jclustering.VoxelFeatures;
 import static jclustering.GUIUtils.*;
+import static jclustering.MathUtils.squaredDistance;
 import static jclustering.Utils.getClusteringMetric;
 
 import ij.IJ;
@@ -64,9 +66,12 @@ public class LeaderFollower extends ClusteringTechnique
         // Add all voxels to an array to order them by amplitude in the 
         // next step.
         IJ.showStatus("Leader-Follower. Building voxel array...");
+        // The row of each voxel is kept as the fourth element.
         ArrayList<int []> ordered_voxels = new ArrayList<int []>();
-        for (Voxel v : ip) {
-            int [] coord = new int[] {v.x, v.y, v.slice};
+        int n = ip.getVoxelCount();
+        for (int row = 0; row < n; row++) {
+            int [] coord = new int[] {ip.getX(row), ip.getY(row), 
+                                      ip.getSlice(row), row};
             ordered_voxels.add(coord);
         }
         
@@ -77,8 +82,14 @@ public class LeaderFollower extends ClusteringTechnique
         // Process all TACs.                       
         int vsize = ordered_voxels.size();
         int vprocessed = 0;
+        int frames = ip.getDimensions()[4];
         IJ.showStatus("Leader-Follower. Building clusters...");
         
+        // Centroids prepared by the metric, kept in the same order as the
+        // clusters. Only the centroid that changes is prepared again.
+        double [][] prepared = new double[0][];
+        double [] distances = new double[0];
+        
         for (int [] coord : ordered_voxels) {
             
             // Info update
@@ -91,7 +102,7 @@ public class LeaderFollower extends ClusteringTechnique
             }
             
             Voxel v = new Voxel(coord[0], coord[1], coord[2], 
-                                ip.getTAC(coord[0], coord[1], coord[2]));
+                                ip.getTAC(coord[3], new double[frames]));
 
             int size = clusters.size();
 
@@ -100,23 +111,30 @@ public class LeaderFollower extends ClusteringTechnique
             if (clusters.isEmpty()) {
                 Cluster c = new Cluster(v);
                 clusters.add(c);
+                prepared = _addPrepared(prepared, c);
             }
             // Else, let's include new voxels into their corresponding clusters
             // or create new ones if there still space
             else {
                 // Get closest cluster
-                int cindex = _getClosestCluster(v);
+                if (distances.length < size) 
+                    distances = new double[Math.max(size, 
+                                                    2 * distances.length)];
+                metric.distances(coord[3], v.tac, prepared, distances);
+                int cindex = _getClosestCluster(v, distances);
 
                 if (cindex >= 0) { // There is a cluster that can 
                                    // include this voxel                    
                     Cluster c = clusters.get(cindex);
                     // Add TAC modifying centroid
                     c.add(v);
+                    prepared[cindex] = _prepare(c);
                 } else if (cindex == CLUSTER_NOT_FOUND) { 
                     // Create a new cluster if there is room for it.
                     if (size < max_clusters) {
                         Cluster c = new Cluster(v);
                         clusters.add(c);
+                        prepared = _addPrepared(prepared, c);
                     }
                 }
             }
@@ -193,11 +211,29 @@ public class LeaderFollower extends ClusteringTechnique
     }
     
     /*
-     * Get closest cluster to provided TAC. Returns:
+     * Returns the centroid of the given cluster, prepared by the metric.
+     */
+    private double [] _prepare(Cluster c) {
+        return metric.prepare(new double[][] {c.getCentroid()})[0];
+    }
+    
+    /*
+     * Returns a copy of prepared with the centroid of a new cluster added
+     * at the end.
+     */
+    private double [][] _addPrepared(double [][] prepared, Cluster c) {
+        double [][] res = Arrays.copyOf(prepared, prepared.length + 1);
+        res[prepared.length] = _prepare(c);
+        return res;
+    }
+    
+    /*
+     * Get closest cluster to provided TAC, given its distance to all of 
+     * them. Returns:
      * * CLUSTER_NOT_FOUND if no cluster with enough correlation has been found.
      * * The cluster index if one is found.     
      */
-    private int _getClosestCluster(Voxel v) {
+    private int _getClosestCluster(Voxel v, double [] distances) {
                 
         ArrayList<Integer> selected = new ArrayList<Integer>();   
         ArrayList<Double> scores    = new ArrayList<Double>();
@@ -205,12 +241,11 @@ public class LeaderFollower extends ClusteringTechnique
             
         // Find the cluster with the highest correlation with this TAC        
         for (int j = 0; j < size; j++) {            
-            Cluster c = clusters.get(j);            
             // As the metrics that this technique may use return the
             // correlation / cosine values as a metric (1 - x), that
             // change needs to be undone because the actual value is needed
-            // here. That explains the 1 - metric.distance() in the next line.
-            double score = 1 - metric.distance(v.tac, c.getCentroid()); 
+            // here. That explains the 1 - distance in the next line.
+            double score = 1 - distances[j]; 
             if (score > threshold) {
                 selected.add(j);    
                 scores.add(score);
@@ -235,7 +270,8 @@ public class LeaderFollower extends ClusteringTechnique
             for (int j : selected) {                
                 Cluster c = clusters.get(j);
                 double w = FastMath.exp(-scores.get(score_index++));                
-                double euc = _distance(v.tac, c.getCentroid()) * w;
+                double euc = _distance(v.tac, c.getCentroid(), 
+                                       min_dist / w) * w;
                 if (euc < min_dist) {
                     min_dist = euc;
                     i = j;
@@ -246,15 +282,16 @@ public class LeaderFollower extends ClusteringTechnique
     }
     
     /*
-     * Computes the Euclidean distance between two given TACs.
+     * Computes the Euclidean distance between two given TACs. Stops as
+     * soon as it is known to be bigger than bound, returning a value
+     * bigger than it.
      */
-    private double _distance(double [] tac1, double [] tac2) {
-        double distance = 0.0;
-        for (int i = 0; i < tac1.length; i++) {
-            double diff = tac1[i] - tac2[i];            
-            distance += diff * diff;            
-        }            
-        return FastMath.sqrt(distance);
+    private double _distance(double [] tac1, double [] tac2, double bound) {
+        // The bound is loosened a little, so that rounding never discards
+        // a centroid that would have been chosen.
+        double sq_bound = bound * bound * (1 + 1e-9);
+        return FastMath.sqrt(squaredDistance(tac1, 0, tac2, tac1.length, 
+                                             sq_bound));
     }
 
     @Override
@@ -324,12 +361,11 @@ public class LeaderFollower extends ClusteringTechnique
 
         @Override
         public int compare(int[] arg0, int[] arg1) {
-            // Get TACs
-            double [] tac0 = ip.getTAC(arg0[0], arg0[1], arg0[2]);
-            double [] tac1 = ip.getTAC(arg1[0], arg1[1], arg1[2]);
-            // Get peak values
-            double max0 = StatUtils.max(tac0);
-            double max1 = StatUtils.max(tac1);
+            // Get peak values from the feature cache, instead of reading
+            // both TACs on every comparison
+            VoxelFeatures f = ip.getFeatures();
+            double max0 = f.getPeak(arg0[3]);
+            double max1 = f.getPeak(arg1[3]);
             // Return value according to the peak amplitude
             if (max0 < max1)          return 1;
             else if (max0 > max1)     return -1;
@@ -13,14 +13,13 @@ import javax.swing.JPanel;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.SingularValueDecomposition;
-import org.apache.commons.math3.stat.correlation.Covariance;
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 
 import ij.IJ;
 import ij.ImagePlus;
-import jclustering.Voxel;
+import jclustering.VoxelCursor;
 import static jclustering.MathUtils.getMaxIndex;
-import static jclustering.Utils.RealMatrix2IJ;
+import static jclustering.Utils.createComponentImage;
+import static jclustering.Utils.setComponents;
 import static jclustering.GUIUtils.createChoices;
 
 /**
@@ -40,8 +39,6 @@ public class PCA extends ClusteringTechnique {
     // Should the PCA image be shown after processing?
     private boolean showPCA = true;
     
-    private double[][] normalized_data;
-    
     private String transform = "Covariance";
     
     @Override
@@ -54,25 +51,21 @@ public class PCA extends ClusteringTechnique {
         // Get mean for each dimension
         IJ.showStatus("PCA: computing mean...");
         double [] mean = _getMean();
-        _normalizeData(mean);
-        
-        // Created the normalized data, but don't copy the actual values,
-        // just reference the double [][] containing it.
-        RealMatrix normalized_data_matrix = new 
-                Array2DRowRealMatrix(normalized_data, false);
         
-        // Obtain covariance or correlation matrix
+        // Obtain covariance or correlation matrix. The mean-centered data
+        // is never stored: the covariance matrix is accumulated (in double
+        // precision) while walking through the image.
         RealMatrix c = null;
         
+        IJ.showStatus("PCA: computing covariance matrix...");
+        double [][] cov = _getCovariance(mean);
+        
         if (transform.equals("Covariance")) {
-            IJ.showStatus("PCA: computing covariance matrix...");
-            c = (new Covariance(normalized_data_matrix)).
-                              getCovarianceMatrix();
+            c = new Array2DRowRealMatrix(cov, false);
             IJ.showStatus("PCA: computing covariance matrix SVD...");
         } else if (transform.equals("Correlation")) {
             IJ.showStatus("PCA: computing correlation matrix...");
-            c = (new PearsonsCorrelation(normalized_data_matrix)).
-                    getCorrelationMatrix();
+            c = new Array2DRowRealMatrix(_getCorrelation(cov), false);
             IJ.showStatus("PCA: computing correlation matrix SVD...");
         }
         
@@ -92,16 +85,13 @@ public class PCA extends ClusteringTechnique {
         System.gc();
         
         IJ.showStatus("PCA: computing projected vectors and segmentation...");
-        RealMatrix result = normalized_data_matrix.multiply(svdv.transpose());
-        result = result.transpose();
-
+        
         // If the PCA image is to be shown, create a new image with
-        // result.getRowDimension() frames and the original number of 
+        // as many frames as components and the original number of 
         // x, y, z dimensions
-        if (showPCA) {     
-            ImagePlus PCA_image = RealMatrix2IJ(result, dim, this.ip, 
-                    "PCA image");
-            PCA_image.show();
+        ImagePlus PCA_image = null;
+        if (showPCA) {
+            PCA_image = createComponentImage("PCA image", dim, dimensions);
         }
         
         // Please note: this is somehow incorrect. As the clustering model
@@ -111,15 +101,35 @@ public class PCA extends ClusteringTechnique {
         // resulting images would contain the contribution of that component
         // in all voxels, but for segmentation purposes this approach is
         // chosen.
-        int column_index = 0;
-        for (Voxel v : ip) {
-                        
-            double [] projection = result.getColumn(column_index++);   
+        double [][] basis = svdv.getData();
+        double [] norm = new double[dimensions];
+        double [] projection = new double[dimensions];
+        VoxelCursor v = ip.cursor();
+        while (v.next()) {
+            
+            // Project the mean-centered TAC onto the new basis
+            _subtractMean(v.tac, mean, norm);
+            for (int k = 0; k < dimensions; k++) {
+                double [] b = basis[k];
+                double p = 0.0;
+                for (int t = 0; t < dimensions; t++) {
+                    p += norm[t] * b[t];
+                }
+                projection[k] = p;
+            }
+            
+            if (PCA_image != null) {
+                setComponents(PCA_image, v.x, v.y, v.slice, projection);
+            }
             
             // Every Voxel belongs to the maximum index of its projected TAC
             int max = getMaxIndex(projection) + 1;
-            addTACtoCluster(v, max);            
-        }   
+            addTACtoCluster(v.tac, v.x, v.y, v.slice, max);
+        }
+        
+        if (PCA_image != null) {
+            PCA_image.show();
+        }
         
         // Fill in the additionalInfo array.
         additionalInfo = new String[2];
@@ -161,22 +171,20 @@ public class PCA extends ClusteringTechnique {
     }
     
     /*
-     * Get mean for each dimension and initializes normalized data to its size.
+     * Get mean for each dimension.
      */
     private double [] _getMean() {
         
         double [] mean = new double[dimensions];   
-        int total_voxels = 0;
+        int total_voxels = ip.getVoxelCount();
         
-        for (Voxel v : ip) {          
-            total_voxels++;
+        VoxelCursor v = ip.cursor();
+        while (v.next()) {
             for (int i = 0; i < dimensions; i++) {
                 mean[i] += v.tac[i];
             }
         }
         
-        normalized_data = new double[total_voxels][dimensions];
-
         // Mean value
         for (int i = 0; i < dimensions; i++) {
             mean[i] /= total_voxels;
@@ -187,31 +195,67 @@ public class PCA extends ClusteringTechnique {
     }
 
     /*
-     * Generates removes mean from every variable (column)
+     * Computes the (bias-corrected) covariance matrix of the data, after
+     * removing the mean from every variable (column).
+     */
+    private double [][] _getCovariance(double [] mean) {
+        
+        double [][] cov = new double[dimensions][dimensions];
+        double [] norm = new double[dimensions];
+        
+        // Accumulate the lower triangle only
+        VoxelCursor v = ip.cursor();
+        while (v.next()) {
+            _subtractMean(v.tac, mean, norm);
+            for (int i = 0; i < dimensions; i++) {
+                double [] row = cov[i];
+                double d = norm[i];
+                for (int j = 0; j <= i; j++) {
+                    row[j] += d * norm[j];
+                }
+            }
+        }
+        
+        int n = ip.getVoxelCount();
+        for (int i = 0; i < dimensions; i++) {
+            for (int j = 0; j <= i; j++) {
+                cov[i][j] /= (n - 1);
+                cov[j][i] = cov[i][j];
+            }
+        }
+        
+        return cov;
+        
+    }
+    
+    /*
+     * Turns a covariance matrix into a correlation matrix.
      */
-    private void _normalizeData(double [] mean) {
+    private double [][] _getCorrelation(double [][] cov) {
         
-        int i = 0;
+        double [][] corr = new double[dimensions][dimensions];
         
-        for (Voxel v : ip) {            
-            // Subtract the mean
-            double [] norm = _subtractMean(v.tac, mean);
-            // Fill in normalized_data, initialized in the _getMean() method.
-            normalized_data[i++] = norm;
+        for (int i = 0; i < dimensions; i++) {
+            for (int j = 0; j < dimensions; j++) {
+                corr[i][j] = (i == j) ? 1.0 : 
+                    cov[i][j] / Math.sqrt(cov[i][i] * cov[j][j]);
+            }
         }
+        
+        return corr;
+        
     }
     
     /*
-     * Returns a TAC with the mean removed
+     * Writes the TAC with the mean removed into norm
      */
-    private double [] _subtractMean(double [] tac, double [] mean) {
-        double [] norm = new double[tac.length];
+    private void _subtractMean(double [] tac, double [] mean, 
+                               double [] norm) {
         
         for (int i = 0; i < tac.length; i++) {
             norm[i] = tac[i] - mean[i];
         }
         
-        return norm;
     }
 
     public void itemStateChanged(ItemEvent arg0) {
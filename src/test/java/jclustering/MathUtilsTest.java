@@ -0,0 +1,113 @@
+package jclustering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the unrolled kernels against plain loops, for lengths that are
+ * and are not multiples of four.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class MathUtilsTest {
+
+    private static final int MAX_LENGTH = 13;
+    private static final double TOLERANCE = 1e-12;
+
+    private final Random r = new Random(7);
+
+    private double[] _random(int n) {
+        double[] res = new double[n];
+        for (int i = 0; i < n; i++)
+            res[i] = r.nextGaussian() * 100;
+        return res;
+    }
+
+    @Test
+    public void testDot() {
+
+        for (int n = 0; n <= MAX_LENGTH; n++) {
+            double[] a = _random(n + 3), b = _random(n);
+            double expected = 0.0;
+            for (int i = 0; i < n; i++)
+                expected += a[i + 3] * b[i];
+            assertEquals(expected, MathUtils.dot(a, 3, b, n),
+                         TOLERANCE * Math.max(1.0, Math.abs(expected)));
+            assertEquals(MathUtils.dot(a, 0, b, n), MathUtils.dot(a, b, n),
+                         0.0);
+        }
+
+    }
+
+    @Test
+    public void testSquaredDistance() {
+
+        for (int n = 0; n <= MAX_LENGTH; n++) {
+            double[] a = _random(n + 2), b = _random(n);
+            double expected = 0.0;
+            for (int i = 0; i < n; i++)
+                expected += (a[i + 2] - b[i]) * (a[i + 2] - b[i]);
+            double d = MathUtils.squaredDistance(a, 2, b, n);
+            assertEquals(expected, d, TOLERANCE * Math.max(1.0, expected));
+            assertEquals(MathUtils.squaredDistance(a, 0, b, n),
+                         MathUtils.squaredDistance(a, b, n), 0.0);
+        }
+
+    }
+
+    @Test
+    public void testBoundedSquaredDistance() {
+
+        for (int n = 0; n <= MAX_LENGTH; n++) {
+            double[] a = _random(n + 1), b = _random(n);
+            double d = MathUtils.squaredDistance(a, 1, b, n);
+
+            // Without a bound, exactly the same value
+            assertEquals(d, MathUtils.squaredDistance(a, 1, b, n,
+                                                      Double.MAX_VALUE),
+                         0.0);
+
+            // With a bound, the same value or a partial sum above it
+            for (double bound : new double[] {0.0, d / 3, d, 2 * d}) {
+                double p = MathUtils.squaredDistance(a, 1, b, n, bound);
+                assertTrue(p == d || (p > bound && p <= d));
+            }
+        }
+
+    }
+
+    @Test
+    public void testCosine() {
+
+        for (int n = 1; n <= MAX_LENGTH; n++) {
+            double[] a = _random(n), b = _random(n);
+            double expected = MathUtils.dot(a, b, n) /
+                              (Math.sqrt(MathUtils.dot(a, a, n)) *
+                               Math.sqrt(MathUtils.dot(b, b, n)));
+            assertEquals(expected, MathUtils.cosine(a, b, n), 0.0);
+        }
+
+    }
+
+    @Test
+    public void testSmooth() {
+
+        for (int n = 0; n <= MAX_LENGTH; n++) {
+            double[] a = _random(n);
+            double[] copy = a.clone();
+            double[] expected = MathUtils.smooth(a);
+            assertTrue(Arrays.equals(copy, a));
+            assertTrue(Arrays.equals(expected,
+                                     MathUtils.smooth(a, new double[n])));
+            // In place
+            assertTrue(Arrays.equals(expected, MathUtils.smooth(a, a)));
+        }
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package jclustering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that rows are stored and read back correctly across chunk
+ * boundaries, for every kind of storage.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class TACMatrixTest {
+
+    private static final int ROWS = 103;
+    private static final int FRAMES = 7;
+    private static final int CHUNK_ROWS = 10;
+
+    private TACMatrix _create(boolean single, boolean mapped)
+            throws IOException {
+
+        int[] offsets = new int[ROWS];
+        for (int i = 0; i < ROWS; i++)
+            offsets[i] = 2 * i;
+
+        if (mapped)
+            return TACMatrix.map(offsets, ROWS, FRAMES, 20, 20, single,
+                                 CHUNK_ROWS);
+        return TACMatrix.allocate(offsets, ROWS, FRAMES, 20, 20, single,
+                                  CHUNK_ROWS);
+
+    }
+
+    private void _check(boolean single, boolean mapped) throws IOException {
+
+        Random r = new Random(3);
+        TACMatrix m = _create(single, mapped);
+        assertEquals(single, m.isSinglePrecision());
+        assertEquals(mapped, m.isMapped());
+
+        // Values that single precision can hold exactly
+        double[] expected = new double[ROWS * FRAMES];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = (float) r.nextGaussian();
+
+        // Write ranges of rows of random lengths, some of them across
+        // chunk boundaries
+        for (int from = 0; from < ROWS; ) {
+            int to = Math.min(ROWS, from + 1 + r.nextInt(25));
+            m.setTACs(from, to, Arrays.copyOfRange(expected, from * FRAMES,
+                                                   to * FRAMES));
+            from = to;
+        }
+
+        for (int i = 0; i < 500; i++) {
+            int from = r.nextInt(ROWS);
+            int to = from + r.nextInt(ROWS - from + 1);
+            double[] d = m.getTACs(from, to, new double[(to - from) * FRAMES]);
+            assertArrayEquals(Arrays.copyOfRange(expected, from * FRAMES,
+                                                 to * FRAMES), d, 0.0);
+        }
+
+        for (int row = 0; row < ROWS; row++) {
+            for (int t = 0; t < FRAMES; t++)
+                assertEquals(expected[row * FRAMES + t], m.get(row, t), 0.0);
+
+            double[] chunk = m.getChunk(row);
+            if (single || mapped) {
+                assertNull(chunk);
+            } else {
+                int offset = m.getChunkOffset(row);
+                assertArrayEquals(m.getTAC(row),
+                        Arrays.copyOfRange(chunk, offset, offset + FRAMES),
+                        0.0);
+            }
+        }
+
+        // Split in several chunks
+        assertNull(m.getData());
+        assertNull(m.getFloatData());
+
+        TACMatrix s = m.createSibling();
+        assertEquals(single, s.isSinglePrecision());
+        assertEquals(mapped, s.isMapped());
+        assertEquals(0.0, s.get(ROWS - 1, FRAMES - 1), 0.0);
+        s.close();
+
+        // Closed matrices keep their storage kind, but cannot be used
+        m.close();
+        assertEquals(single, m.isSinglePrecision());
+        assertEquals(mapped, m.isMapped());
+        try {
+            m.getTAC(0);
+            fail("A closed matrix was read");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            m.createSibling();
+            fail("A closed matrix created a sibling");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        m.close();
+
+    }
+
+    @Test
+    public void testHeapDouble() throws IOException {
+        _check(false, false);
+    }
+
+    @Test
+    public void testHeapSingle() throws IOException {
+        _check(true, false);
+    }
+
+    @Test
+    public void testMappedDouble() throws IOException {
+        _check(false, true);
+    }
+
+    @Test
+    public void testMappedSingle() throws IOException {
+        _check(true, true);
+    }
+
+    @Test
+    public void testSingleChunk() {
+
+        double[] data = new double[ROWS * FRAMES];
+        TACMatrix m = new TACMatrix(data, new int[ROWS], ROWS, FRAMES, 20,
+                                    20);
+        assertTrue(m.getData() == data);
+        assertFalse(m.isMapped());
+        assertFalse(m.isSinglePrecision());
+
+    }
+
+}
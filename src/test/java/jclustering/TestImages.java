@@ -0,0 +1,84 @@
+package jclustering;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Random;
+
+/**
+ * Synthetic images for the tests.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class TestImages {
+
+    /**
+     * Creates a dynamic image with three kinds of exponential TACs plus
+     * some noise. About a third of the voxels are masked (all zeros).
+     *
+     * @param type Image type ("8-bit", "16-bit" or "32-bit").
+     * @param width Width.
+     * @param height Height.
+     * @param slices Number of slices.
+     * @param frames Number of frames.
+     * @param seed Seed for the random values.
+     * @return The new image.
+     */
+    public static ImagePlus create(String type, int width, int height,
+                                   int slices, int frames, long seed) {
+
+        ImagePlus imp = IJ.createImage("test", type, width, height,
+                                       slices * frames);
+        imp.setDimensions(1, slices, frames);
+        imp.setOpenAsHyperStack(true);
+
+        Random r = new Random(seed);
+        ImageStack is = imp.getStack();
+        for (int s = 1; s <= slices; s++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    boolean masked = r.nextInt(3) == 0;
+                    int kind = r.nextInt(3) + 1;
+                    for (int f = 1; f <= frames; f++) {
+                        double v = masked ? 0.0 :
+                                   kind * 10 * Math.exp(-0.1 * f * kind) +
+                                   r.nextInt(5) + 1;
+                        is.setVoxel(x, y, imp.getStackIndex(1, s, f) - 1, v);
+                    }
+                }
+            }
+        }
+
+        return imp;
+
+    }
+
+    /**
+     * Returns the same image, on a stack that claims to be virtual, so
+     * that {@link ImagePlusHyp} reads it as such.
+     *
+     * @param imp The image.
+     * @return A new image sharing the pixels of {@code imp}.
+     */
+    public static ImagePlus virtual(ImagePlus imp) {
+
+        ImageStack is = imp.getStack();
+        ImageStack vs = new ImageStack(is.getWidth(), is.getHeight()) {
+            @Override
+            public boolean isVirtual() {
+                return true;
+            }
+        };
+        for (int i = 1; i <= is.getSize(); i++)
+            vs.addSlice("", is.getPixels(i));
+
+        ImagePlus res = new ImagePlus("virtual", vs);
+        res.setDimensions(1, imp.getNSlices(), imp.getNFrames());
+        res.setOpenAsHyperStack(true);
+        res.setCalibration(imp.getCalibration());
+        return res;
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package jclustering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that cursors visit the same voxels, with the same TACs, as the
+ * iterator, for normal and virtual stacks.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class VoxelCursorTest {
+
+    private static final int FRAMES = 9;
+
+    private void _check(ImagePlus imp) {
+
+        ImagePlusHyp ip = new ImagePlusHyp(imp);
+        ArrayList<Voxel> expected = new ArrayList<Voxel>();
+        for (Voxel v : ip)
+            expected.add(v);
+        assertEquals(expected.size(), ip.getVoxelCount());
+
+        // Buffers longer than the number of frames are allowed
+        for (int length : new int[] {FRAMES, FRAMES + 3}) {
+            VoxelCursor c = ip.cursor(new double[length]);
+            for (Voxel v : expected) {
+                assertTrue(c.next());
+                assertEquals(v.x, c.x);
+                assertEquals(v.y, c.y);
+                assertEquals(v.slice, c.slice);
+                assertArrayEquals(v.tac, Arrays.copyOf(c.tac, FRAMES), 0.0);
+            }
+            assertFalse(c.next());
+        }
+
+        // Split cursors, taken together
+        int i = 0;
+        for (VoxelCursor c : ip.split(5)) {
+            while (c.next()) {
+                Voxel v = expected.get(i);
+                assertEquals(i, c.getRow());
+                assertEquals(v.x, c.x);
+                assertArrayEquals(v.tac, c.tac, 0.0);
+                i++;
+            }
+        }
+        assertEquals(expected.size(), i);
+
+    }
+
+    @Test
+    public void testStack() {
+        _check(TestImages.create("16-bit", 13, 7, 4, FRAMES, 42));
+    }
+
+    @Test
+    public void testVirtualStack() {
+        for (String type : new String[] {"8-bit", "16-bit", "32-bit"}) {
+            ImagePlus imp = TestImages.virtual(
+                    TestImages.create(type, 13, 7, 4, FRAMES, 42));
+            assertTrue(new ImagePlusHyp(imp).isVirtual());
+            _check(imp);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package jclustering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+import org.apache.commons.math3.stat.ranking.NaNStrategy;
+import org.apache.commons.math3.stat.ranking.NaturalRanking;
+import org.apache.commons.math3.stat.ranking.TiesStrategy;
+import org.junit.Test;
+
+/**
+ * Checks the voxel features against Commons Math.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class VoxelFeaturesTest {
+
+    private final Random r = new Random(11);
+
+    /*
+     * Random TAC with many ties and some NaN values.
+     */
+    private double[] _random(int n) {
+        double[] res = new double[n];
+        for (int i = 0; i < n; i++)
+            res[i] = r.nextInt(10) == 0 ? Double.NaN : r.nextInt(4);
+        return res;
+    }
+
+    @Test
+    public void testRank() {
+
+        // The ranking used by the Spearman's correlation of Commons Math
+        NaturalRanking ranking = new NaturalRanking(NaNStrategy.MAXIMAL,
+                                                    TiesStrategy.AVERAGE);
+        for (int i = 0; i < 200; i++) {
+            double[] tac = _random(1 + i % 13);
+            assertArrayEquals(ranking.rank(tac.clone()),
+                              VoxelFeatures.rank(tac, new double[tac.length]),
+                              0.0);
+        }
+
+    }
+
+    @Test
+    public void testNormalize() {
+
+        PearsonsCorrelation pc = new PearsonsCorrelation();
+        for (int n = 2; n <= 13; n++) {
+            double[] a = new double[n], b = new double[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = r.nextGaussian();
+                b[i] = r.nextGaussian();
+            }
+            double[] za = VoxelFeatures.normalize(a, new double[n]);
+            double[] zb = VoxelFeatures.normalize(b, new double[n]);
+            assertEquals(pc.correlation(a, b), MathUtils.dot(za, zb, n),
+                         1e-12);
+        }
+
+    }
+
+    @Test
+    public void testStd() {
+
+        StandardDeviation sd = new StandardDeviation();
+        for (int frames : new int[] {1, 2, 9}) {
+            ImagePlusHyp ip = new ImagePlusHyp(
+                    TestImages.create("32-bit", 9, 8, 2, frames, 5));
+            VoxelFeatures f = ip.getFeatures();
+            VoxelCursor v = ip.cursor();
+            while (v.next()) {
+                // 0.0 for a single frame, as Commons Math
+                assertEquals(sd.evaluate(v.tac), f.getStd(v.getRow()),
+                             1e-12);
+            }
+        }
+
+    }
+
+}
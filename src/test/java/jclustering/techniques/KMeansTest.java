@@ -0,0 +1,146 @@
+package jclustering.techniques;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import jclustering.Cluster;
+import jclustering.ImagePlusHyp;
+import jclustering.TestImages;
+import jclustering.Utils;
+
+import org.junit.Test;
+
+/**
+ * Checks that the accelerated assignment modes give exactly the same
+ * clusters as the standard one, and the k-means|| sampling.
+ *
+ * @author <a href="mailto:jmmateos@mce.hggm.es">José María Mateos</a>.
+ */
+public class KMeansTest {
+
+    private static final String[] MODES = {"Elkan", "Hamerly", "Automatic"};
+
+    private final ImagePlusHyp ip = new ImagePlusHyp(
+            TestImages.create("32-bit", 21, 19, 4, 10, 9));
+
+    /*
+     * Runs k-means and describes the clusters: coordinates and the exact
+     * bits of the mean TACs.
+     */
+    private String _run(String metric, int k, String init, String mode) {
+
+        KMeans km = (KMeans) Utils.getClusteringTechnique("KMeans", ip);
+        km.setMetric(Utils.getClusteringMetric(metric, ip));
+        km.configure(k, init, mode);
+        km.compute();
+
+        StringBuilder sb = new StringBuilder();
+        ArrayList<Cluster> clusters = km.getClusters();
+        for (Cluster c : clusters) {
+            for (Integer[] co : c.getCoordinates())
+                sb.append(co[0]).append(',').append(co[1]).append(',')
+                  .append(co[2]).append(';');
+            double[] tac = c.getClusterTAC();
+            if (tac != null)
+                for (double d : tac)
+                    sb.append(Double.doubleToLongBits(d)).append(' ');
+            sb.append('|');
+        }
+        return sb.toString();
+
+    }
+
+    private void _check(String metric) {
+
+        for (int k : new int[] {3, 12, 25}) {
+            // Explicit initial points (one per cluster), so that all runs
+            // start from the same centroids, or the deterministic 
+            // k-means++
+            String init = "det++";
+            if (k <= 12) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < k; i++)
+                    sb.append(i > 0 ? ";" : "").append((i * 7) % 21)
+                      .append(',').append((i * 11) % 19).append(',')
+                      .append(1 + i % 4);
+                init = sb.toString();
+            }
+            String expected = _run(metric, k, init, "Standard");
+            for (String mode : MODES)
+                assertEquals(metric + ", k = " + k + ", " + mode, expected,
+                             _run(metric, k, init, mode));
+        }
+
+    }
+
+    @Test
+    public void testPNorm() {
+        _check("PNorm");
+    }
+
+    @Test
+    public void testRMSD() {
+        _check("RMSD");
+    }
+
+    @Test
+    public void testMahalanobis() {
+        _check("Mahalanobis");
+    }
+
+    /*
+     * Voxels without a finite distance to any other voxel must not stop
+     * the k-means|| sampling, and must never be sampled.
+     */
+    private void _checkSampling(String metric, double value) {
+
+        // Half of the first slice gets the given value in all frames
+        ImagePlus imp = TestImages.create("32-bit", 21, 19, 4, 10, 9);
+        ImageStack is = imp.getStack();
+        for (int f = 1; f <= 10; f++)
+            for (int y = 0; y < 19; y++)
+                for (int x = 0; x < 10; x++)
+                    is.setVoxel(x, y, imp.getStackIndex(1, 1, f) - 1, 
+                                value);
+        ImagePlusHyp iph = new ImagePlusHyp(imp);
+
+        KMeans km = (KMeans) Utils.getClusteringTechnique("KMeans", iph);
+        km.setMetric(Utils.getClusteringMetric(metric, iph));
+
+        int sampled = 0;
+        for (int seed = 0; seed < 10; seed++) {
+            ArrayList<Integer> c = km.sampleCandidates(4, new Random(seed));
+            // A first candidate in the block has no finite distance to any
+            // voxel, so nothing else can be sampled
+            if (_inBlock(iph, c.get(0))) continue;
+            assertTrue(c.size() > 1);
+            for (int row : c)
+                assertFalse(_inBlock(iph, row));
+            sampled++;
+        }
+        assertTrue(sampled > 0);
+
+    }
+
+    private boolean _inBlock(ImagePlusHyp iph, int row) {
+        return iph.getSlice(row) == 1 && iph.getX(row) < 10;
+    }
+
+    @Test
+    public void testSamplingNaN() {
+        _checkSampling("PNorm", Double.NaN);
+    }
+
+    @Test
+    public void testSamplingConstant() {
+        _checkSampling("PearsonsCorrelation", 5.0);
+    }
+
+}